@@ -73,6 +73,28 @@ static boolean parseAndCheckSlot(int& slot, byte*& cmd) {
   return true;
 }
 
+static void applySlot(RefreshBuffer& buffer, int slot, int address, int speed, boolean direction, int fns) {
+    // function bits are presented in an order that is easiliy translated to DCC packets
+    // FL-F4-F3-F2-F1-F8-F7-F6-F5-F12-F11-F10-F9
+    int f1;
+    int f2lo;
+    int f2hi;
+    // FL-F4-F3-F1-F1 goes in f1
+    f1   = (fns & 0b1111100000000) >> 8;
+    // F8-F7-F6-F5 goes in f2 low
+    f2lo = (fns & 0b11110000) >> 4;
+    // F12-F11-F10-F9 go in f2 high
+    f2hi = (fns & 0b1111);
+    
+    buffer.slot(slot).update().withThrottleCmd(address, (byte)speed, direction, false).
+      withF1Cmd(address, f1).
+      withF2LowCmd(address, f2lo).
+      withF2HighCmd(address, f2hi);
+    Serial.print("OK slot="); Serial.print(slot); Serial.print(",adr="); Serial.print(address); 
+      Serial.print(",spd=" ); Serial.print(speed); Serial.print(",dir="); Serial.print(direction); 
+      Serial.print(",fns="); Serial.print("0b"); Serial.print(fns, 2); Serial.println() ;   
+}
+
 static void parse(RefreshBuffer& buffer, Current current, byte *cmd) {
   switch (*cmd) {
   case 'S': case 's': {
@@ -114,26 +136,45 @@ static void parse(RefreshBuffer& buffer, Current current, byte *cmd) {
     while (ifns < 13 && parseDigit(tmp, cmd, '1')) { skipWhiteSpace(cmd); fns = (fns<<1) | tmp; ifns++; }
     // all 13 function bits are optional, shift in remaining 0's
     fns = fns << (13-ifns);
-    
-    // function bits are presented in an order that is easiliy translated to DCC packets
-    // FL-F4-F3-F2-F1-F8-F7-F6-F5-F12-F11-F10-F9
-    int f1;
-    int f2lo;
-    int f2hi;
-    // FL-F4-F3-F1-F1 goes in f1
-    f1   = (fns & 0b1111100000000) >> 8;
-    // F8-F7-F6-F5 goes in f2 low
-    f2lo = (fns & 0b11110000) >> 4;
-    // F12-F11-F10-F9 go in f2 high
-    f2hi = (fns & 0b1111);
-    
-    buffer.slot(slot).update().withThrottleCmd(address, (byte)speed, direction, false).
-      withF1Cmd(address, f1).
-      withF2LowCmd(address, f2lo).
-      withF2HighCmd(address, f2hi);
-    Serial.print("OK slot="); Serial.print(slot); Serial.print(",adr="); Serial.print(address); 
-      Serial.print(",spd=" ); Serial.print(speed); Serial.print(",dir="); Serial.print(direction); 
-      Serial.print(",fns="); Serial.print("0b"); Serial.print(fns, 2); Serial.println() ;   
+
+    applySlot(buffer, slot, address, speed, direction, fns);
+    }
+    break;
+  case 'U': case 'u': {
+    // U <slot> <address> <speed|direction> <functions> <checksum>, all hex, no spaces, see Com.h
+    cmd++;
+    int bs[7];
+    int checksum = 0;
+    for (int i=0; i<7; ++i) {
+      if (!parseHexByte(bs[i], cmd)) {
+        Serial.println("ERROR short frame");
+        return;
+      }
+      checksum ^= bs[i];
+    }
+    // including the (inverted) checksum byte itself, everything cancels out to all ones
+    if (checksum != 0xFF) {
+      Serial.println("ERROR invalid checksum");
+      return;
+    }
+    int slot = bs[0];
+    int address = bs[1]*256 + bs[2];
+    int speed = bs[3] & 0x7F;
+    boolean direction = (bs[3] & 0x80) != 0;
+    int fns = (bs[4]*256 + bs[5]) & 0b1111111111111;
+    if (slot >= SLOTS) {
+      Serial.println("ERROR invalid slot");
+      return;
+    }
+    if (address < MIN_DCC_ADDRESS || address > MAX_DCC_ADDRESS) {
+      Serial.println("ERROR invalid address");
+      return;
+    }
+    if (speed > MAX_DCC_SPEED) {
+      Serial.println("ERROR invalid speed");
+      return;
+    }
+    applySlot(buffer, slot, address, speed, direction, fns);
     }
     break;
   case 'L': case 'l': {
@@ -155,6 +196,7 @@ static void parse(RefreshBuffer& buffer, Current current, byte *cmd) {
     break;
   case 'N': case 'n': {
     // Notfall!
+    cmd++;
     int slot;
     int address;
 
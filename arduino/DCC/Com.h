@@ -37,6 +37,11 @@
 //   -<direction> is 1: forward, 0: backwards
 //   -<function-bits> is string of 0's and 1's, FL-F4-F3-F2-F1-F8-F7-F6-F5-F12-F11-F10-F9, all optional (padded with 0's if not specified)
 
+// set slot, compact:
+//   U<slot><address><speed|direction><function-bits><checksum>
+//   -example: U0104D2FE1000C6
+//   -all hex, no spaces: <slot> 1 byte, <address> 2 bytes, <speed|direction> 1 byte with direction in the high bit,
+//    <function-bits> 2 bytes, lower 13 bits in the same order as for S, <checksum> inverted XOR of the previous 6 bytes
 
 // send loconet packet
 //   L <byte>
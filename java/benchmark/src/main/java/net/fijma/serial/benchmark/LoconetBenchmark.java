@@ -0,0 +1,59 @@
+package net.fijma.serial.benchmark;
+
+import net.fijma.serial.Loconet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoconetBenchmark {
+
+    // one invocation pushes a whole traffic mix through the decoder
+
+    @Param({ "samples", "sensors", "slots" })
+    public String mix;
+
+    private int[] bytes;
+    private String[] lines;
+    private Loconet decoder;
+    private Loconet formatter;
+    private long sink;
+
+    @Setup
+    public void setup() {
+        bytes = Traffic.bytes(mix);
+        lines = Traffic.lines(mix);
+
+        // typed consumer, only looks at primitives
+        decoder = new Loconet();
+        decoder.received.attach(p -> sink += p.opcode() + p.address() + p.slot() + (p.checksumValid() ? 1 : 0));
+
+        // consumer asking for the human readable form, like the message log
+        formatter = new Loconet();
+        formatter.received.attach(p -> sink += p.toString().length());
+    }
+
+    @Benchmark
+    public long pushByte() {
+        for (int b : bytes) decoder.pushByte(b);
+        return sink;
+    }
+
+    @Benchmark
+    public long decode() {
+        for (int b : bytes) formatter.pushByte(b);
+        return sink;
+    }
+
+    @Benchmark
+    public long pushHex() {
+        // line parsing as done by SerialController for every "LN ..." line
+        for (String line : lines) decoder.pushHex(line, 2);
+        return sink;
+    }
+}
@@ -0,0 +1,43 @@
+package net.fijma.serial.benchmark;
+
+import net.fijma.serial.model.Model;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBenchmark {
+
+    // cost of a throttle change on the caller's thread: encoding the slot command and handing it to the writer,
+    // with a port that discards whatever is written
+
+    private Model model;
+    private Model.Throttle throttle;
+    private int speed = 0;
+
+    @Setup
+    public void setup() {
+        model = new Model(s -> { }, Model.DEFAULT_SLOTS, 1024, Model.DEFAULT_SLOT_WRITE_INTERVAL);
+        throttle = model.getThrottleFor(1234);
+        throttle.toggleFunction(0);
+        throttle.toggleFunction(5);
+    }
+
+    @Benchmark
+    public int setSpeed() {
+        speed = (speed + 1) % 127;
+        throttle.setSpeed(speed);
+        return throttle.getSpeed();
+    }
+
+    @Benchmark
+    public boolean toggleFunction() {
+        throttle.toggleFunction(3);
+        return throttle.getFunction(3);
+    }
+}
@@ -0,0 +1,80 @@
+package net.fijma.serial.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class Traffic {
+
+    // Realistic LocoNet traffic mixes, as raw bytes and as the "LN ..." lines the sketch forwards.
+
+    // throttle acquiring loco 81 and driving it, see the comment in Loconet
+    private static final int[][] SAMPLES = {
+            { 0xbe, 0x00, 0x51, 0x10 },
+            { 0xe6, 0x15, 0x00, 0x06, 0x20, 0x51, 0x00, 0x07, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x52, 0x11, 0x00, 0x00, 0x00, 0x00, 0x3f },
+            { 0xba, 0x06, 0x06, 0x45 },
+            { 0xe7, 0x0e, 0x06, 0x30, 0x51, 0x00, 0x00, 0x07, 0x00, 0x00, 0x00, 0x00, 0x00, 0x76 },
+            { 0xa0, 0x06, 0x0d, 0x54 },
+    };
+
+    static List<int[]> packets(String mix) {
+        List<int[]> result = new ArrayList<>();
+        switch (mix) {
+            case "samples":
+                for (int[] p : SAMPLES) result.add(p);
+                break;
+            case "sensors":
+                // occupancy detectors toggling all over the layout
+                for (int adr = 0; adr < 256; ++adr) {
+                    int in1 = (adr >> 1) & 0x7F;
+                    int in2 = ((adr >> 8) & 0x0F) | ((adr & 1) << 5) | ((adr & 2) << 3) | 0x40;
+                    result.add(withChecksum(0xb2, in1, in2));
+                }
+                break;
+            case "slots":
+                // slot read responses
+                for (int slot = 1; slot < 21; ++slot) {
+                    result.add(withChecksum(0xe7, 0x0e, slot, 0x30, slot + 10, slot, 0x20, 0x07, 0x00, 0x00, 0x00, 0x00, 0x00));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mix: " + mix);
+        }
+        return result;
+    }
+
+    static int[] bytes(String mix) {
+        List<int[]> packets = packets(mix);
+        int n = 0;
+        for (int[] p : packets) n += p.length;
+        int[] result = new int[n];
+        int i = 0;
+        for (int[] p : packets) {
+            System.arraycopy(p, 0, result, i, p.length);
+            i += p.length;
+        }
+        return result;
+    }
+
+    static String[] lines(String mix) {
+        // formatted like Com.cpp does: "LN" and lower case hex without leading zeroes
+        List<int[]> packets = packets(mix);
+        String[] result = new String[packets.size()];
+        for (int i = 0; i < result.length; ++i) {
+            StringBuilder sb = new StringBuilder("LN");
+            for (int b : packets.get(i)) sb.append(' ').append(Integer.toHexString(b));
+            result[i] = sb.toString();
+        }
+        return result;
+    }
+
+    private static int[] withChecksum(int... bs) {
+        int[] result = new int[bs.length + 1];
+        int checksum = 0xFF;
+        for (int i = 0; i < bs.length; ++i) {
+            result[i] = bs[i];
+            checksum ^= bs[i];
+        }
+        result[bs.length] = checksum;
+        return result;
+    }
+}
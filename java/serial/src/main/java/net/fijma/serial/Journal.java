@@ -0,0 +1,254 @@
+package net.fijma.serial;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class Journal implements Closeable {
+
+    // Rolling journal of the raw LocoNet packets, for hours of bus history. Packets go into memory mapped segment
+    // files of fixed size records:
+    //   time (8, ms since epoch) | address (2, -1 if none) | length (1) | packet bytes (21, longer packets truncated)
+    // Every segment keeps a small index in memory: its time range, the opcodes and the addresses in it. Segments are
+    // time ordered, as are the records in them, so a query skips segments that can't match and binary searches
+    // the start time in the ones that can.
+    // The receive thread only copies the packet into a ring, a journal thread does the file work.
+
+    static final int RECORD = 32;
+    private static final int DATA = 21;
+    private static final int ADDRESSES = 1 << 14; // 14 bit loco addresses cover sensors and switches as well
+
+    public static final int DEFAULT_SEGMENT_RECORDS = 1 << 16; // 2MB per segment
+    public static final int DEFAULT_SEGMENTS = 64;
+    private static final int RING = 4096; // records, power of 2
+
+    public static class Entry {
+        public final long time;
+        public final LoconetPacket packet;
+
+        Entry(long time, LoconetPacket packet) {
+            this.time = time;
+            this.packet = packet;
+        }
+
+        @Override
+        public String toString() {
+            return time + " " + packet;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buf;
+        int count;
+        long first = Long.MAX_VALUE;
+        long last;
+        final long[] opcodes = new long[256 / 64];
+        final long[] addresses = new long[ADDRESSES / 64];
+
+        Segment(File file, int records) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) records * RECORD);
+        }
+
+        void index(long time, int opcode, int address) {
+            if (first == Long.MAX_VALUE) first = time;
+            last = time;
+            opcodes[opcode >>> 6] |= 1L << opcode;
+            if (address >= 0) addresses[address >>> 6] |= 1L << address;
+        }
+
+        boolean mayContain(int opcode, int address, long from, long to) {
+            if (count == 0 || first > to || last < from) return false;
+            if (opcode >= 0 && (opcodes[opcode >>> 6] & (1L << opcode)) == 0) return false;
+            return address < 0 || (addresses[address >>> 6] & (1L << address)) != 0;
+        }
+
+        long time(int i) { return buf.getLong(i * RECORD); }
+    }
+
+    private final File dir;
+    private final int segmentRecords;
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private int next; // number of the next segment file
+
+    // single producer (receive thread), single consumer (journal thread)
+    private final byte[] ring = new byte[RING * RECORD];
+    private final AtomicLong head = new AtomicLong(); // next to write to file
+    private final AtomicLong tail = new AtomicLong(); // next free
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public Journal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_RECORDS, DEFAULT_SEGMENTS);
+    }
+
+    public Journal(File dir, int segmentRecords, int maxSegments) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create journal directory " + dir);
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = maxSegments;
+        open();
+        thread = new Thread(this::run, "journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // pick up the segments of an earlier session, rebuilding their index
+    private void open() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.matches("journal-\\d{6}\\.dat"));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File f : files) {
+            // never reuse a number, not even of a segment we leave alone
+            next = Math.max(next, Integer.parseInt(f.getName().substring(8, 14)) + 1);
+            if (f.length() != (long) segmentRecords * RECORD) continue; // other segment size, leave alone
+            Segment s = new Segment(f, segmentRecords);
+            while (s.count < segmentRecords && s.time(s.count) != 0) {
+                int p = s.count * RECORD;
+                s.index(s.buf.getLong(p), s.buf.get(p + 11) & 0xFF, s.buf.getShort(p + 8));
+                ++s.count;
+            }
+            segments.addLast(s);
+        }
+        trim();
+    }
+
+    // on the receive thread: copy into the ring, never blocks
+    public void append(LoconetPacket p) {
+        long t = tail.get();
+        if (t - head.get() >= RING) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int off = (int) (t & (RING - 1)) * RECORD;
+        long time = System.currentTimeMillis();
+        for (int i=0; i<8; ++i) ring[off + i] = (byte) (time >>> (56 - 8 * i));
+        int address = p.address();
+        ring[off + 8] = (byte) (address >> 8);
+        ring[off + 9] = (byte) address;
+        ring[off + 10] = (byte) Math.min(p.length, 255);
+        int n = Math.min(p.length, DATA);
+        for (int i=0; i<n; ++i) ring[off + 11 + i] = (byte) p.bs[i];
+        tail.lazySet(t + 1);
+    }
+
+    public long dropped() { return dropped.get(); }
+
+    private void run() {
+        while (running) {
+            if (!drain()) LockSupport.parkNanos(1_000_000);
+        }
+        drain();
+    }
+
+    private synchronized boolean drain() {
+        long h = head.get();
+        long t = tail.get();
+        if (h == t) return false;
+        try {
+            for (; h < t; ++h) write((int) (h & (RING - 1)) * RECORD);
+        } catch (IOException e) {
+            // no place to write, drop what we have
+            dropped.addAndGet(t - h);
+            h = t;
+        }
+        head.lazySet(h);
+        return true;
+    }
+
+    private void write(int off) throws IOException {
+        Segment s = segments.peekLast();
+        if (s == null || s.count == segmentRecords) s = roll();
+        int p = s.count * RECORD;
+        s.buf.position(p);
+        s.buf.put(ring, off, RECORD);
+        long time = s.buf.getLong(p);
+        s.index(time, ring[off + 11] & 0xFF, s.buf.getShort(p + 8));
+        ++s.count;
+    }
+
+    private Segment roll() throws IOException {
+        Segment s = new Segment(new File(dir, String.format("journal-%06d.dat", next++)), segmentRecords);
+        segments.addLast(s);
+        trim();
+        return s;
+    }
+
+    private void trim() throws IOException {
+        while (segments.size() > maxSegments) {
+            Segment s = segments.removeFirst();
+            s.raf.close();
+            if (!s.file.delete()) throw new IOException("Cannot delete " + s.file);
+        }
+    }
+
+    // all packets for opcode and address (-1 for any) with from <= time <= to, oldest first
+    public synchronized List<Entry> query(int opcode, int address, long from, long to) {
+        List<Entry> result = new ArrayList<>();
+        if (address >= ADDRESSES) return result;
+        for (Segment s : segments) {
+            if (!s.mayContain(opcode, address, from, to)) continue;
+            // first record at or after from
+            int lo = 0, hi = s.count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (s.time(mid) < from) lo = mid + 1; else hi = mid;
+            }
+            for (int i=lo; i<s.count; ++i) {
+                int p = i * RECORD;
+                long time = s.buf.getLong(p);
+                if (time > to) break;
+                if (opcode >= 0 && (s.buf.get(p + 11) & 0xFF) != opcode) continue;
+                if (address >= 0 && s.buf.getShort(p + 8) != address) continue;
+                result.add(new Entry(time, packet(s.buf, p)));
+            }
+        }
+        return result;
+    }
+
+    private static LoconetPacket packet(MappedByteBuffer buf, int p) {
+        int n = Math.min(buf.get(p + 10) & 0xFF, DATA);
+        int[] bs = new int[n];
+        for (int i=0; i<n; ++i) bs[i] = buf.get(p + 11 + i) & 0xFF;
+        return new LoconetPacket(bs, n);
+    }
+
+    // wait until everything appended so far is in the file
+    public void sync() {
+        long t = tail.get();
+        while (head.get() < t) drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment s : segments) {
+                s.buf.force();
+                s.raf.close();
+            }
+            segments.clear();
+        }
+    }
+}
@@ -2,20 +2,158 @@ package net.fijma.serial;
 
 import net.fijma.mvc.Event;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.stream.Collectors;
 
 public class Loconet {
 
-    public final Event<String> decoded = new Event<>();
-    private int[] bs = new int[128];
+    public final Event<LoconetPacket> received = new Event<>();
+    public final LoconetStats stats = new LoconetStats();
+    private final int[] bs = new int[128];
+    private final LoconetPacket packet = new LoconetPacket(bs, 0);
     private int length=0;
     private int remaining = 0;
 
+    // handlers per opcode, created on first subscription, so the hot path is a single indexed lookup
+    private final List<Event<LoconetPacket>> handlers = new ArrayList<>(Collections.nCopies(256, null));
+
     private static final String ADR = "ADR";
     private static final String SLOT = "SLOT";
 
-    private int opcodeLength(int x) {
+    // see also:
+    // https://wiki.rocrail.net/doku.php?id=loconet:ln-pe-en
+    // https://klaus.merkert.info/eisenbahn/digital/loconet/
+    public static final int OPC_IDLE = 0x85;
+    public static final int OPC_GPON = 0x83;
+    public static final int OPC_GPOFF = 0x82;
+    public static final int OPC_BUSY = 0x81;
+    public static final int OPC_LOCO_SPD = 0xA0;
+    public static final int OPC_LOCO_DIF = 0xA1;
+    public static final int OPC_LOCO_SND = 0xA2;
+    public static final int OPC_LOCO_ADR = 0xBF;
+    public static final int OPC_LOCO_ADR_EXT = 0xBE;
+    public static final int OPC_SW_STATE = 0xBC;
+    public static final int OPC_RQ_SL_DATA = 0xBB;
+    public static final int OPC_MOVE_SLOTS = 0xBA;
+    public static final int OPC_SLOT_STAT1 = 0xB5;
+    public static final int OPC_LONG_ACK = 0xB4;
+    public static final int OPC_INPUT_REP = 0xB2;
+    public static final int OPC_REQ_SWITCH = 0xB0;
+    public static final int OPC_WR_SL_DATA = 0xEF;
+    public static final int OPC_IMM_PACKET = 0xED;
+    public static final int OPC_RD_SL_DATA = 0xE7;
+    public static final int OPC_RD_SL_DATA_EXT = 0xE6;
+    public static final int OPC_PEER_XFR = 0xE5;
+
+    private interface Formatter {
+        void format(int[] buffer, StringBuilder sb);
+    }
+
+    // opcode -> name and opcode -> formatter of the parameters, indexed by opcode byte
+    private static final String[] NAMES = new String[256];
+    private static final Formatter[] FORMATTERS = new Formatter[256];
+
+    private static void define(int opcode, String name, Formatter formatter) {
+        // guard the table at class initialisation, a typo here should not silently shadow another opcode
+        if (opcodeLength(opcode) == 0) throw new IllegalStateException("not an opcode: " + asHex(opcode));
+        if (NAMES[opcode] != null) throw new IllegalStateException("duplicate opcode: " + asHex(opcode));
+        NAMES[opcode] = name;
+        FORMATTERS[opcode] = formatter;
+    }
+
+    static {
+        // 2 byte instructions:
+        define(OPC_IDLE, "OPC_IDLE", null); // FORCE IDLE STATE
+        define(OPC_GPON, "OPC_GPON", null); // GLOBAL POWER ON
+        define(OPC_GPOFF, "OPC_GPOFF", null); // GLOBAL POWER OFF
+        define(OPC_BUSY, "OPC_BUSY", null); // MASTER BUSY
+
+        // 4  byte instructions:
+        define(OPC_LOCO_SPD, "OPC_LOCO_SPD", (buffer, sb) ->
+                sb.append("(").append(SLOT).append("=").append(buffer[1]).
+                        append(",SPD=").append(buffer[2]).append(")"));
+        define(OPC_LOCO_DIF, "OPC_LOCO_DIF", (buffer, sb) ->
+                sb.append("(").append(SLOT).append("=").append(buffer[1]).
+                        append(",DIR=").append((buffer[2] & 0x20) == 0x20 ? "BACKWARDS" : "FORWARDS").
+                        append(",F0F4F3F2F1=").append(Integer.toBinaryString(buffer[2] & 0x1F)).append(")"));
+        define(OPC_LOCO_SND, "OPC_LOCO_SND", (buffer, sb) ->
+                sb.append("(").append(SLOT).append("=").append(buffer[1]).
+                        append(",F8F7F6F5=").append(Integer.toBinaryString(buffer[2] & 0x0F)).append(")"));
+        Formatter locoAddress = (buffer, sb) ->
+                sb.append("(").append(ADR).append("=").append(formatAddress(buffer[2], buffer[1])).append(")");
+        define(OPC_LOCO_ADR, "OPC_LOCO_ADR", locoAddress);
+        define(OPC_LOCO_ADR_EXT, "OPC_LOCO_ADR_EXT", locoAddress);
+        define(OPC_SW_STATE, "OPC_SW_STATE", (buffer, sb) ->
+                sb.append("(SW1=").append(asHex(buffer[1])).
+                        append(",SW2=").append(asHex(buffer[2])).append(")"));
+        define(OPC_RQ_SL_DATA, "OPC_RQ_SL_DATA", (buffer, sb) ->
+                sb.append("(SLOT=").append(buffer[1]).
+                        append(",ZERO=").append(asHex(buffer[2])).append(")"));
+        define(OPC_MOVE_SLOTS, "OPC_MOVE_SLOTS", (buffer, sb) ->
+                sb.append("(SRC=").append(buffer[1]).
+                        append(",DST=").append(buffer[2]).append(")"));
+        define(OPC_SLOT_STAT1, "OPC_SLOT_STAT1", (buffer, sb) ->
+                sb.append("(").append(SLOT).append("=").append(buffer[1]).
+                        append(",STAT1=").append(asHex(buffer[2])).append(")"));
+        define(OPC_LONG_ACK, "OPC_LONG_ACK", (buffer, sb) ->
+                sb.append("(LOPC=").append(opcodeName(buffer[1] | 0x80)).
+                        append(",ACK1=").append(asHex(buffer[2])).append(")"));
+        define(OPC_INPUT_REP, "OPC_INPUT_REP", (buffer, sb) -> {
+            boolean i = (buffer[2] & 0b0010_0000) != 0;
+            boolean l = (buffer[2] & 0b0001_0000) != 0;
+            int adr = 2 * buffer[1] + 256 * (buffer[2] & 0b0000_1111);
+            if (i) adr+=1;
+            sb.append("(ADR=").append(adr).append(",L=").append(l).append(")");
+        });
+        define(OPC_REQ_SWITCH, "OPC_REQ_SWITCH", (buffer, sb) -> {
+            boolean dir = (buffer[2] & 0b00100000) != 0;
+            boolean on  = (buffer[2] & 0b00010000) != 0;
+            int adr = buffer[1] + 128 * (buffer[2] & 0b0000_1111);
+            sb.append("(ADR=").append(adr).append(",DIR=").append(dir).append(",ON=").append(on).append(")");
+        });
+
+        // variable length instructions:
+        Formatter slotData = (buffer, sb) -> {
+            if (buffer[1] == 0x0E) {
+                sb.append("(").append(SLOT).append("=").append(buffer[2]).
+                        append(",STAT=").append(buffer[3]).
+                        append(",ADR=").append(formatAddress(buffer[4], buffer[9])).append(", ETC)");
+            } else {
+                sb.append("(unexpected length=").append(buffer[1]).append(")");
+            }
+        };
+        define(OPC_WR_SL_DATA, "OPC_WR_SL_DATA", slotData);
+        define(OPC_RD_SL_DATA, "OPC_RD_SL_DATA", slotData);
+        define(OPC_RD_SL_DATA_EXT, "OPC_RD_SL_DATA_EXT", (buffer, sb) -> {
+            if (buffer[1] == 0x15) {
+                sb.append("(").append(SLOT).append("=").append(buffer[3]).
+                        append(",STAT=").append(buffer[4]).
+                        append(",").append(ADR).append("=").append(formatAddress(buffer[5], buffer[6])).append(", ETC)");
+            } else {
+                sb.append("(unexpected length=").append(buffer[1]).append(")");
+            }
+        });
+        define(OPC_IMM_PACKET, "OPC_IMM_PACKET", null); // meaning of params not further split-out
+        define(OPC_PEER_XFR, "OPC_PEER_XFR", null); // not yet split out further params
+    }
+
+    public static String opcodeName(int x) {
+        String name = NAMES[x & 0xFF];
+        // never seen in reality and in documentation
+        return name == null ? "UNKNOWN_OPCODE" : name;
+    }
+
+    // subscribe to a single opcode, e.g. ln.on(Loconet.OPC_INPUT_REP).attach(...)
+    public Event<LoconetPacket> on(int opcode) {
+        if (opcode < 0 || opcode > 0xFF || opcodeLength(opcode) == 0) throw new IllegalArgumentException("not an opcode: " + asHex(opcode));
+        if (handlers.get(opcode) == null) handlers.set(opcode, new Event<>());
+        return handlers.get(opcode);
+    }
+
+    private static int opcodeLength(int x) {
         // if x denotes opcode (msb set), that is, start of instruction, return length of instruction else zero
         // 1000 0000, 0x80 (length 2)
         // 1010 0000, 0xA0 (length 4)
@@ -43,21 +181,69 @@ public class Loconet {
         return asHex(high) + "," + asHex(low) + "=" + (high*128+low);
     }
 
-    private String hexString(int[] buffer, int length) {
+    private static String hexString(int[] buffer, int length) {
         return Arrays.stream(buffer).limit(length).mapToObj(Loconet::asHex).collect(Collectors.joining(" "));
     }
 
+    static int checksumOf(int[] buffer, int length) {
+        int checksum = buffer[0] & 0xFF;
+        for (int i=1; i<length-1; ++i) {
+            checksum = checksum ^ (buffer[i] & 0xFF);
+        }
+        return ~checksum & 0xFF;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    // Push the space separated hex bytes of a line as forwarded by the sketch ("LN a0 6 d 54"), starting at offset.
+    // Parses straight from the chars: no splitting, no intermediate strings and no exceptions on the receive path.
+    // Tokens that are not one or two hex digits (like the "LN" prefix) are skipped, like Com.cpp does with garbage.
+    public void pushHex(CharSequence line, int offset) {
+        int value = 0;
+        int digits = 0;
+        boolean valid = true;
+        int n = line.length();
+        for (int i=offset; i<=n; ++i) {
+            char c = i < n ? line.charAt(i) : ' ';
+            if (c == ' ') {
+                if (valid && digits > 0 && digits <= 2) pushByte(value);
+                value = 0;
+                digits = 0;
+                valid = true;
+                continue;
+            }
+            int d = hexDigit(c);
+            if (d < 0) {
+                valid = false;
+            } else {
+                value = value * 16 + d;
+                digits++;
+            }
+        }
+    }
+
     public void pushByte(int b) {
 
+        stats.onByte();
+
         // if the next byte starts a new instruction, instructionLength != 0
         int opcodeLength = opcodeLength(b);
 
         // if we expect start of new instruction, but did not get it, discard this byte
-        if (remaining == 0 && opcodeLength == 0) return;
+        if (remaining == 0 && opcodeLength == 0) {
+            stats.onDiscard(1);
+            return;
+        }
 
         // if this byte starts a new instruction, while previous one is incomplete,
         // discard the current instruction and start a new one
         if (remaining > 0 && opcodeLength > 0) {
+            stats.onResync(length);
             length = 0;
             remaining = 0;
         }
@@ -76,63 +262,16 @@ public class Loconet {
         remaining--;
 
         if (remaining == 0) {
-            // complete, decode current instruction
-            decoded.trigger(decode(bs, length));
+            // complete, hand out current instruction (no copying, no formatting)
+            packet.wrap(bs, length);
+            stats.onPacket(bs[0], length, checksumOf(bs, length) == bs[length-1]);
+            Event<LoconetPacket> handler = handlers.get(bs[0]);
+            if (handler != null) handler.trigger(packet);
+            received.trigger(packet);
             length = 0;
         }
     }
 
-    private String opcodeName(int x) {
-        // see also:
-        // https://wiki.rocrail.net/doku.php?id=loconet:ln-pe-en
-        // https://klaus.merkert.info/eisenbahn/digital/loconet/
-        switch (x) {
-            case 0x85:
-                return "OPC_IDLE";
-            case 0x83:
-                return "OPC_GPON";
-            case 0x82:
-                return "OPC_GPOFF";
-            case 0x81:
-                return "OPC_BUSY";
-            case 0xA0:
-                return "OPC_LOCO_SPD";
-            case 0xA1:
-                return "OPC_LOCO_DIF";
-            case 0xBF:
-                return "OPC_LOCO_ADR";
-            case 0xBE:
-                return "OPC_LOCO_ADR_EXT";
-            case 0xBC:
-                return "OPC_SW_STATE";
-            case 0xBB:
-                return "OPC_RQ_SL_DATA";
-            case 0xBA:
-                return "OPC_MOVE_SLOTS";
-            case 0xB5:
-                return "OPC_SLOT_STAT1";
-            case 0xB4:
-                return "OPC_LONG_ACK";
-            case 0xB2:
-                return "OPC_INPUT_REP";
-            case 0xB0:
-                return "OPC_REQ_SWITCH";
-            case 0xEF:
-                return "OPC_WR_SL_DATA";
-            case 0xED:
-                return "OPC_IMM_PACKET"; // meaning of params not further split-out
-            case 0xE7:
-                return "OPC_RD_SL_DATA";
-            case 0xE6:
-                return "OPC_RD_SL_DATA_EXT";
-            case 0xE5:
-                return "OPC_PEER_XFR"; // not yet split out further params
-            // never seen in reality and in documentation
-            default:
-                return "UNKNOWN_OPCODE";
-        }
-    }
-
     /*
         UNKNOWN_OPCODE[0xBF][bf 00 16 56]
         OPC_RD_SL_DATA[0xE7](SLOT=8,STAT=32,ADR=22, ETC)[e7 0e 08 20 16 00 00 07 00 00 00 00 00 2f]
@@ -155,106 +294,22 @@ public class Loconet {
 
         */
 
-    private String decode(int[] buffer, int length) {
+    static String format(LoconetPacket p) {
+        return decode(p.bs, p.length);
+    }
+
+    private static String decode(int[] buffer, int length) {
         // we can assume length of buffer is correct, as we read exactly the required amount of bytes before calling this function
 
         StringBuilder sb = new StringBuilder(opcodeName(buffer[0]));
-
-        switch (buffer[0]) {
-            // 2 byte instructions:
-            case 0x85:
-                // FORCE IDLE STATE
-                break;
-            case 0x83:
-                // GLOBAL POWER ON
-                break;
-            case 0x82:
-                // GLOBAL POWER OFF
-                break;
-            case 0x81:
-                // MASTER BUSY
-                break;
-            // 4  byte instructions:
-            case 0xA0:
-                sb.append("(").append(SLOT).append("=").append(buffer[1]).
-                        append(",SPD=").append(buffer[2]).append(")");
-                break;
-            case 0xA1:
-                sb.append("(").append(SLOT).append("=").append(buffer[1]).
-                        append(",DIR=").append((buffer[2] & 0x20) == 0x20 ? "BACKWARDS" : "FORWARDS").
-                        append(",F0F4F3F2F1=").append(Integer.toBinaryString(buffer[2] & 0x1F)).append(")");
-                break;
-            case 0xBF:
-            case 0xBE:
-                sb.append("(").append(ADR).append("=").append(formatAddress(buffer[2], buffer[1])).append(")");
-                break;
-            case 0xBC:
-                sb.append("(SW1=").append(asHex(buffer[1])).
-                        append(",SW2=").append(asHex(buffer[2])).append(")");
-                break;
-            case 0xBB:
-                sb.append("(SLOT=").append(buffer[1]).
-                        append(",ZERO=").append(asHex(buffer[2])).append(")");
-                break;
-            case 0xBA:
-                sb.append("(SRC=").append(buffer[1]).
-                        append(",DST=").append(buffer[2]).append(")");
-                break;
-            case 0xB5:
-                sb.append("(").append(SLOT).append("=").append(buffer[1]).
-                        append(",STAT1=").append(asHex(buffer[2])).append(")");
-                break;
-            case 0xB4:
-                sb.append("(LOPC=").append(opcodeName(buffer[1] | 0x80)).
-                        append(",ACK1=").append(asHex(buffer[2])).append(")");
-                break;
-            case 0xB2: {
-                boolean x = (buffer[2] & 0b0100_0000) != 0;
-                boolean i = (buffer[2] & 0b0010_0000) != 0;
-                boolean l = (buffer[2] & 0b0001_0000) != 0;
-                int adr = 2 * buffer[1] + 256 * (buffer[2] & 0b0000_1111);
-                if (i) adr+=1;
-                sb.append("(ADR=").append(adr).append(",L=").append(l).append(")");
-                break;
-                }
-            case 0xB0: {
-                boolean dir = (buffer[2] & 0b00100000) != 0;
-                boolean on  = (buffer[2] & 0b00010000) != 0;
-                int adr = buffer[1] + 128 * (buffer[2] & 0b0000_1111);
-                sb.append("(ADR=").append(adr).append(",DIR=").append(dir).append(",ON=").append(on).append(")");
-                break;
-            }
-            case 0xEF:
-            case 0xE7:
-                if (buffer[1] == 0x0E) {
-                    sb.append("(").append(SLOT).append("=").append(buffer[2]).
-                            append(",STAT=").append(buffer[3]).
-                            append(",ADR=").append(formatAddress(buffer[4], buffer[9])).append(", ETC)");
-                } else {
-                    sb.append("(unexpected length=").append(buffer[1]).append(")");
-                }
-                break;
-            case 0xE6:
-                if (buffer[1] == 0x15) {
-                    sb.append("(").append(SLOT).append("=").append(buffer[3]).
-                            append(",STAT=").append(buffer[4]).
-                            append(",").append(ADR).append("=").append(formatAddress(buffer[5], buffer[6])).append(", ETC)");
-                } else {
-                    sb.append("(unexpected length=").append(buffer[1]).append(")");
-                }
-                break;
-            default:
-        }
+        Formatter formatter = FORMATTERS[buffer[0]];
+        if (formatter != null) formatter.format(buffer, sb);
 
         sb.append(" [").append(hexString(buffer, length)).append("]");
 
 
         // calculate checksum and compare to actual
-        int checksum = buffer[0] & 0xFF;
-        for (int i=1; i<length-1; ++i) {
-            checksum = checksum ^ (buffer[i] & 0xFF);
-        }
-        checksum = ~checksum & 0xFF;
+        int checksum = checksumOf(buffer, length);
         if (checksum != buffer[length-1]) {
             sb.append(" invalid checksum, expected:").append(asHex(buffer[length-1])).append(", actual:")
                     .append(asHex(checksum));
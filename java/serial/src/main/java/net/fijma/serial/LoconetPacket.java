@@ -0,0 +1,118 @@
+package net.fijma.serial;
+
+import java.util.Arrays;
+
+public class LoconetPacket {
+
+    // Flyweight over a single complete LocoNet packet. The decoder reuses one instance on top of its own receive
+    // buffer, so the contents are only valid during the callback. Use copy() to hold on to a packet.
+    int[] bs;
+    int length;
+
+    LoconetPacket(int[] bs, int length) {
+        wrap(bs, length);
+    }
+
+    // empty packet to copy into, with a buffer as big as the decoder's so any packet fits
+    public LoconetPacket() {
+        this(new int[128], 0);
+    }
+
+    void wrap(int[] bs, int length) {
+        this.bs = bs;
+        this.length = length;
+    }
+
+    public int opcode() { return bs[0]; }
+
+    public int length() { return length; }
+
+    public int get(int i) { return bs[i]; }
+
+    public int checksum() { return bs[length-1]; }
+
+    public int expectedChecksum() { return Loconet.checksumOf(bs, length); }
+
+    public boolean checksumValid() { return expectedChecksum() == checksum(); }
+
+    // slot number for the slot related opcodes, -1 otherwise
+    public int slot() {
+        switch (bs[0]) {
+            case Loconet.OPC_LOCO_SPD:
+            case Loconet.OPC_LOCO_DIF:
+            case Loconet.OPC_LOCO_SND:
+            case Loconet.OPC_SLOT_STAT1:
+            case Loconet.OPC_RQ_SL_DATA:
+            case Loconet.OPC_MOVE_SLOTS: // source
+                return bs[1];
+            case Loconet.OPC_RD_SL_DATA:
+            case Loconet.OPC_WR_SL_DATA:
+                return bs[1] == 0x0E ? bs[2] : -1;
+            case Loconet.OPC_RD_SL_DATA_EXT:
+                return bs[1] == 0x15 ? bs[3] : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // loco, sensor or switch address, -1 if the opcode carries no address
+    public int address() {
+        switch (bs[0]) {
+            case Loconet.OPC_LOCO_ADR:
+            case Loconet.OPC_LOCO_ADR_EXT:
+                return bs[1] * 128 + bs[2];
+            case Loconet.OPC_INPUT_REP: {
+                int adr = 2 * bs[1] + 256 * (bs[2] & 0b0000_1111);
+                if ((bs[2] & 0b0010_0000) != 0) adr += 1;
+                return adr;
+            }
+            case Loconet.OPC_REQ_SWITCH:
+                return bs[1] + 128 * (bs[2] & 0b0000_1111);
+            case Loconet.OPC_RD_SL_DATA:
+            case Loconet.OPC_WR_SL_DATA:
+                return bs[1] == 0x0E ? bs[9] * 128 + bs[4] : -1;
+            case Loconet.OPC_RD_SL_DATA_EXT:
+                return bs[1] == 0x15 ? bs[6] * 128 + bs[5] : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // speed for the speed and slot data opcodes, -1 otherwise
+    public int speed() {
+        switch (bs[0]) {
+            case Loconet.OPC_LOCO_SPD:
+                return bs[2];
+            case Loconet.OPC_RD_SL_DATA:
+            case Loconet.OPC_WR_SL_DATA:
+                return bs[1] == 0x0E ? bs[5] : -1;
+            case Loconet.OPC_RD_SL_DATA_EXT:
+                return bs[1] == 0x15 ? bs[8] : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // OPC_INPUT_REP: sensor level
+    public boolean sensorHigh() { return (bs[2] & 0b0001_0000) != 0; }
+
+    // OPC_REQ_SWITCH: direction and output on/off
+    public boolean switchDirection() { return (bs[2] & 0b0010_0000) != 0; }
+    public boolean switchOn() { return (bs[2] & 0b0001_0000) != 0; }
+
+    public LoconetPacket copy() {
+        return new LoconetPacket(Arrays.copyOf(bs, length), length);
+    }
+
+    // copy p into this packet's own buffer, no allocation
+    public void copyFrom(LoconetPacket p) {
+        System.arraycopy(p.bs, 0, bs, 0, p.length);
+        length = p.length;
+    }
+
+    @Override
+    public String toString() {
+        // human readable form, only build when somebody asks for it
+        return Loconet.format(this);
+    }
+}
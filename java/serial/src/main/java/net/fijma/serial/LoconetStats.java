@@ -0,0 +1,179 @@
+package net.fijma.serial;
+
+import net.fijma.mvc.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoconetStats implements LoconetStatsMBean {
+
+    // Decoder counters, always on. Only the decoding thread writes them, as plain fields: a couple of increments
+    // per byte. Every second tick() copies them into an immutable snapshot and publishes that through a volatile
+    // field, readers (JMX) only ever look at the snapshot, so they get consistent numbers as of the last second.
+    // Utilisation is the share of the 16.66 kbit/s LocoNet the received bytes take, 10 bits per byte on the wire.
+
+    static final int MAX_SIZE = 32; // size distribution, longer packets share the last bucket
+    private static final double BYTES_PER_SECOND = 16_660 / 10.0;
+    private static final long SECOND = 1_000_000_000;
+
+    public final Event<String> summary = new Event<>();
+
+    // decoder thread only
+    private long bytes;
+    private long packets;
+    private long discarded;
+    private long resyncs;
+    private long checksumErrors;
+    private final long[] opcodes = new long[256];
+    private final long[] sizes = new long[MAX_SIZE + 1];
+
+    // window
+    private long windowStart = -1;
+    private long windowBytes;
+    private long windowPackets;
+    private long summaryInterval; // ns, 0 for none
+    private long summaryStart = -1;
+    private long peakBytes;
+    private Snapshot mark; // at summaryStart
+
+    private static final class Snapshot {
+        final long bytes;
+        final long packets;
+        final long discarded;
+        final long resyncs;
+        final long checksumErrors;
+        final long[] opcodes;
+        final long[] sizes;
+        final long bytesPerSecond;
+        final long packetsPerSecond;
+        final long peakBytesPerSecond;
+
+        Snapshot(LoconetStats s, long bytesPerSecond, long packetsPerSecond) {
+            bytes = s.bytes;
+            packets = s.packets;
+            discarded = s.discarded;
+            resyncs = s.resyncs;
+            checksumErrors = s.checksumErrors;
+            opcodes = s.opcodes.clone();
+            sizes = s.sizes.clone();
+            this.bytesPerSecond = bytesPerSecond;
+            this.packetsPerSecond = packetsPerSecond;
+            peakBytesPerSecond = s.peakBytes;
+        }
+    }
+
+    private volatile Snapshot published = new Snapshot(this, 0, 0);
+
+    void onByte() { ++bytes; }
+
+    void onDiscard(int n) { discarded += n; }
+
+    void onResync(int n) {
+        ++resyncs;
+        discarded += n;
+    }
+
+    void onPacket(int opcode, int length, boolean checksumValid) {
+        ++packets;
+        ++opcodes[opcode];
+        ++sizes[Math.min(length, MAX_SIZE)];
+        if (!checksumValid) ++checksumErrors;
+    }
+
+    // summary line every so many seconds, 0 for none
+    public void setSummaryInterval(long seconds) {
+        summaryInterval = seconds * SECOND;
+        summaryStart = -1;
+    }
+
+    // on the decoding thread, often enough to see every second go by
+    public void tick(long now) {
+        if (windowStart < 0) {
+            windowStart = now;
+            summaryStart = now;
+            windowBytes = bytes;
+            windowPackets = packets;
+            mark = published;
+            return;
+        }
+        if (now - windowStart < SECOND) return;
+        long b = bytes - windowBytes;
+        long p = packets - windowPackets;
+        windowBytes = bytes;
+        windowPackets = packets;
+        // a second with no tick at all counts as quiet, not as busy
+        windowStart = now - windowStart < 2 * SECOND ? windowStart + SECOND : now;
+        peakBytes = Math.max(peakBytes, b);
+        Snapshot s = new Snapshot(this, b, p);
+        published = s;
+
+        if (summaryInterval > 0) {
+            if (summaryStart < 0) {
+                summaryStart = now;
+                mark = s;
+            } else if (now - summaryStart >= summaryInterval) {
+                summary.trigger(summary(mark, s, (now - summaryStart) / (double) SECOND));
+                summaryStart = now;
+                mark = s;
+            }
+        }
+    }
+
+    // between two snapshots
+    private static String summary(Snapshot from, Snapshot to, double seconds) {
+        return String.format("ln %.0f pkt/s %.1f%% bus (peak %.1f%%), %d discarded, %d resyncs, %d checksum errors",
+                (to.packets - from.packets) / seconds,
+                100 * (to.bytes - from.bytes) / seconds / BYTES_PER_SECOND,
+                100 * to.peakBytesPerSecond / BYTES_PER_SECOND,
+                to.discarded - from.discarded, to.resyncs - from.resyncs, to.checksumErrors - from.checksumErrors);
+    }
+
+    @Override
+    public long getBytes() { return published.bytes; }
+
+    @Override
+    public long getPackets() { return published.packets; }
+
+    @Override
+    public long getBytesDiscarded() { return published.discarded; }
+
+    @Override
+    public long getResyncs() { return published.resyncs; }
+
+    @Override
+    public long getChecksumErrors() { return published.checksumErrors; }
+
+    public long getPackets(int opcode) { return published.opcodes[opcode & 0xFF]; }
+
+    @Override
+    public String[] getPacketsPerOpcode() {
+        long[] opcodes = published.opcodes;
+        List<String> result = new ArrayList<>();
+        for (int i=0; i<opcodes.length; ++i) {
+            if (opcodes[i] > 0) result.add(Loconet.opcodeName(i) + "=" + opcodes[i]);
+        }
+        return result.toArray(new String[0]);
+    }
+
+    @Override
+    public long[] getPacketSizes() { return published.sizes.clone(); }
+
+    @Override
+    public long getBytesPerSecond() { return published.bytesPerSecond; }
+
+    @Override
+    public long getPacketsPerSecond() { return published.packetsPerSecond; }
+
+    @Override
+    public double getBusUtilisation() { return published.bytesPerSecond / BYTES_PER_SECOND; }
+
+    @Override
+    public double getPeakBusUtilisation() { return published.peakBytesPerSecond / BYTES_PER_SECOND; }
+
+    @Override
+    public String getSummary() {
+        Snapshot s = published;
+        return String.format("%d packets, %d bytes, %d discarded, %d resyncs, %d checksum errors, %.1f%% bus",
+                s.packets, s.bytes, s.discarded, s.resyncs, s.checksumErrors, 100 * s.bytesPerSecond / BYTES_PER_SECOND);
+    }
+}
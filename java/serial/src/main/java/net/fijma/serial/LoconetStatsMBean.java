@@ -0,0 +1,25 @@
+package net.fijma.serial;
+
+// JMX view on the decoder statistics, registered as net.fijma.serial:type=LoconetStats
+public interface LoconetStatsMBean {
+
+    long getBytes();
+    long getPackets();
+    long getBytesDiscarded();
+    long getResyncs();
+    long getChecksumErrors();
+
+    // "OPC_LOCO_SPD=1234", for the opcodes seen so far
+    String[] getPacketsPerOpcode();
+
+    // packets by length, index is the length in bytes, the last entry counts everything longer
+    long[] getPacketSizes();
+
+    // over the last complete second
+    long getBytesPerSecond();
+    long getPacketsPerSecond();
+    double getBusUtilisation();
+    double getPeakBusUtilisation();
+
+    String getSummary();
+}
@@ -2,12 +2,28 @@ package net.fijma.serial;
 
 import net.fijma.mvc.Application;
 import net.fijma.mvc.serial.Serial;
+import net.fijma.serial.model.Automation;
 import net.fijma.serial.model.Model;
+import net.fijma.serial.model.Port;
+import net.fijma.serial.model.SpeedProfile;
+import net.fijma.serial.server.ThrottleServer;
+import net.fijma.serial.sim.Capture;
+import net.fijma.serial.sim.Replay;
+import net.fijma.serial.sim.SimulatedStation;
 import net.fijma.serial.tui.MainView;
 import net.fijma.serial.tui.SerialController;
 import net.fijma.serial.tui.ThrottleView;
 import org.apache.commons.cli.*;
 
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.ObjectName;
+
 public class Main extends Application {
 
     private static void usage(Options options) {
@@ -25,9 +41,37 @@ public class Main extends Application {
         Options options = new Options();
         options.addOption("p", false, "probe serial ports");
         options.addOption(Option.builder("d").optionalArg(false).hasArg().argName("device").desc("serial port device").build());
+        options.addOption(Option.builder("s").hasArg().argName("slots").desc("number of refresh buffer slots of the controller (default " + Model.DEFAULT_SLOTS + ")").build());
+        options.addOption(Option.builder("r").hasArg().argName("ms").desc("minimal interval between slot updates, 0 to write immediately (default " + Model.DEFAULT_SLOT_WRITE_INTERVAL + ")").build());
+        options.addOption("c", false, "compact slot updates (U frames instead of S commands)");
+        options.addOption(Option.builder("a").hasArg().argName("file").desc("automation rules").build());
+        options.addOption(Option.builder("replay").hasArg().argName("file").desc("replay a capture instead of using a serial port").build());
+        options.addOption("sim", false, "simulated command station instead of a serial port");
+        options.addOption(Option.builder("w").hasArg().argName("file").desc("capture serial traffic to file").build());
+        options.addOption(Option.builder("j").hasArg().argName("dir").desc("journal of all loconet packets").build());
+        options.addOption(Option.builder("t").hasArg().argName("port").desc("serve network throttles on tcp port").build());
+        options.addOption(Option.builder("v").hasArg().argName("ms").desc("interval at which parked locos take turns in the idle slots (default " + Model.DEFAULT_ROTATE_INTERVAL + ")").build());
+        options.addOption("m", false, "slot master, answer the throttles on loconet");
+        options.addOption(Option.builder("k").hasArg().argName("ms").desc("momentum, time from standstill to full speed and back (default 0, none)").build());
+        options.addOption(Option.builder("i").hasArg().argName("s").desc("loconet statistics summary in the log every so many seconds (default 0, none)").build());
+        options.addOption(Option.builder("l").hasArg().argName("size").desc("number of messages kept in the log (default " + Model.DEFAULT_LOG_SIZE + ")").build());
 
         CommandLineParser parser = new DefaultParser();
         String device = null;
+        int slots = Model.DEFAULT_SLOTS;
+        int logSize = Model.DEFAULT_LOG_SIZE;
+        long slotWriteInterval = Model.DEFAULT_SLOT_WRITE_INTERVAL;
+        boolean compactSlots = false;
+        String rules = null;
+        String capture = null;
+        String journal = null;
+        int serverPort = -1;
+        long rotateInterval = Model.DEFAULT_ROTATE_INTERVAL;
+        boolean slotMaster = false;
+        long momentum = 0;
+        long statsInterval = 0;
+        String replay = null;
+        boolean sim = false;
 
         try {
             CommandLine cmd = parser.parse(options, args);
@@ -35,36 +79,124 @@ public class Main extends Application {
                 Serial.probe();
                 System.exit(0);
             }
+            replay = cmd.getOptionValue("replay");
+            sim = cmd.hasOption("sim");
             if (cmd.hasOption("d")) {
                 device = cmd.getOptionValue("d");
-            } else {
+            }
+            // exactly one source of serial lines
+            if ((device != null ? 1 : 0) + (replay != null ? 1 : 0) + (sim ? 1 : 0) != 1) {
                 usage(options);
             }
+            if (cmd.hasOption("s")) {
+                slots = Integer.parseInt(cmd.getOptionValue("s"));
+            }
+            if (cmd.hasOption("l")) {
+                logSize = Integer.parseInt(cmd.getOptionValue("l"));
+            }
+            compactSlots = cmd.hasOption("c");
+            slotMaster = cmd.hasOption("m");
+            rules = cmd.getOptionValue("a");
+            capture = cmd.getOptionValue("w");
+            journal = cmd.getOptionValue("j");
+            if (cmd.hasOption("v")) {
+                rotateInterval = Long.parseLong(cmd.getOptionValue("v"));
+            }
+            if (cmd.hasOption("k")) {
+                momentum = Long.parseLong(cmd.getOptionValue("k"));
+            }
+            if (cmd.hasOption("i")) {
+                statsInterval = Long.parseLong(cmd.getOptionValue("i"));
+            }
+            if (cmd.hasOption("t")) {
+                serverPort = Integer.parseInt(cmd.getOptionValue("t"));
+            }
+            if (cmd.hasOption("r")) {
+                slotWriteInterval = Long.parseLong(cmd.getOptionValue("r"));
+            }
 
-        } catch (ParseException e) {
+        } catch (ParseException | NumberFormatException e) {
             System.err.println(e.getMessage());
             usage(options);
         }
 
-        System.out.println("start using: " + device);
-        exec(device);
+        System.out.println("start using: " + (device != null ? device : replay != null ? replay : "simulator"));
+        exec(device, replay, sim, slots, logSize, slotWriteInterval, compactSlots, rules, capture, journal, serverPort, rotateInterval, slotMaster, momentum, statsInterval);
     }
 
-    private void exec(String device) throws Exception {
-        // register optional module(s)
-        registerModule(new net.fijma.mvc.serial.Serial(this,device));
-
-        // Setup model
-        Model model = new Model(getModule(Serial.class));
+    private void exec(String device, String replay, boolean sim, int slots, int logSize, long slotWriteInterval, boolean compactSlots, String rules, String capture, String journal, int serverPort, long rotateInterval, boolean slotMaster, long momentum, long statsInterval) throws Exception {
+        // Setup model, optionally capturing everything we write. Without a serial port the simulator answers what
+        // we write, a replay doesn't need the commands at all.
+        AtomicReference<SerialController> ctl = new AtomicReference<>();
+        Port port;
+        if (device != null) {
+            // register optional module(s)
+            registerModule(new net.fijma.mvc.serial.Serial(this,device));
+            port = getModule(Serial.class)::write;
+        } else if (sim) {
+            port = new SimulatedStation(line -> {
+                SerialController c = ctl.get();
+                if (c != null) c.post(line);
+            });
+        } else {
+            port = s -> {};
+        }
+        Capture cap = capture == null ? null : new Capture(new FileWriter(capture, true));
+        if (cap != null) port = cap.wrap(port);
+        Model model = new Model(port, slots, logSize, slotWriteInterval);
+        model.setCompactSlots(compactSlots);
+        model.setRotateInterval(rotateInterval);
+        model.setDefaultProfile(SpeedProfile.momentum(momentum, momentum));
+        if (rules != null) {
+            Automation automation = new Automation(model);
+            try (Reader in = new FileReader(rules)) {
+                automation.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(rules + ": " + e.getMessage());
+                System.exit(1);
+            }
+            System.out.println("loaded " + automation.size() + " rules");
+        }
 
         // create views
         MainView view = new MainView(model);
 
         // create controller
         SerialController controller = new SerialController(this, model, view);
+        ctl.set(controller);
+        controller.setCapture(cap);
+        controller.stats().setSummaryInterval(statsInterval);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(controller.stats(), new ObjectName("net.fijma.serial:type=LoconetStats"));
+        Journal jnl = journal == null ? null : new Journal(new File(journal));
+        if (jnl != null) controller.setJournal(jnl);
+        if (slotMaster) controller.serveSlots(new SlotServer(model));
+        ThrottleServer server = serverPort < 0 ? null : new ThrottleServer(model, controller::execute, serverPort);
+        controller.start();
+        if (replay != null) replay(controller, model, replay);
 
-        run(controller);
+        try {
+            run(controller);
+        } finally {
+            if (cap != null) cap.close();
+            if (jnl != null) jnl.close();
+            if (server != null) server.close();
+        }
     }
 
-
+    // feed the capture into the controller, at the pace it was recorded, on a thread of its own
+    private static void replay(SerialController controller, Model model, String file) {
+        Thread t = new Thread(() -> {
+            Replay r = new Replay(controller::post, true);
+            try (Reader in = new FileReader(file)) {
+                long n = r.run(in);
+                controller.execute(() -> model.onMsg("replayed " + n + " lines, skipped " + r.skipped()));
+            } catch (IOException e) {
+                controller.execute(() -> model.onMsg(file + ": " + e.getMessage()));
+            } catch (InterruptedException e) {
+                // quitting
+            }
+        }, "replay");
+        t.setDaemon(true);
+        t.start();
+    }
 }
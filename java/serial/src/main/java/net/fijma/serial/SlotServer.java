@@ -0,0 +1,219 @@
+package net.fijma.serial;
+
+import net.fijma.serial.model.Model;
+
+public class SlotServer {
+
+    // Slot master for the throttles on LocoNet: we keep the slot table and answer their requests, so a handheld
+    // can acquire and drive a loco through this station. The table is plain arrays by slot number. Anything
+    // written to an in-use slot goes to the model throttle for its address (and from there into the refresh
+    // buffer), and changes made elsewhere (keyboard, network) are reflected in the table.
+    // Runs on the thread decoding the packets, replies go out ahead of all other commands.
+
+    static final int SLOTS = 120; // 1..119, 0 is the dispatch slot, which we don't do
+
+    // STAT1
+    static final int FREE = 0x00;
+    static final int COMMON = 0x10;
+    static final int IDLE = 0x20;
+    static final int IN_USE = 0x30;
+    private static final int BUSY_MASK = 0x30;
+    private static final int STEPS_128 = 0x03;
+
+    // DIRF and SND
+    private static final int DIR = 0x20; // set is backwards
+    private static final int F0 = 0x10;
+
+    private final Model model;
+    private final int[] stat = new int[SLOTS];
+    private final int[] address = new int[SLOTS];
+    private final int[] speed = new int[SLOTS]; // loconet: 0 stop, 1 emergency stop, 2..127
+    private final int[] dirf = new int[SLOTS];
+    private final int[] snd = new int[SLOTS];
+    private final int[] ss2 = new int[SLOTS];
+    private final int[] id1 = new int[SLOTS];
+    private final int[] id2 = new int[SLOTS];
+    private final int[] slotOf = new int[1 << 14]; // address -> slot, 0 if none
+
+    public SlotServer(Model model) {
+        this.model = model;
+        model.throttleChanged.attach(this::onThrottle);
+    }
+
+    public void attach(Loconet ln) {
+        ln.on(Loconet.OPC_LOCO_ADR).attach(this::onLocoAdr);
+        ln.on(Loconet.OPC_MOVE_SLOTS).attach(this::onMoveSlots);
+        ln.on(Loconet.OPC_RQ_SL_DATA).attach(this::onRequest);
+        ln.on(Loconet.OPC_WR_SL_DATA).attach(this::onWrite);
+        ln.on(Loconet.OPC_SLOT_STAT1).attach(this::onStat1);
+        ln.on(Loconet.OPC_LOCO_SPD).attach(this::onSpeed);
+        ln.on(Loconet.OPC_LOCO_DIF).attach(this::onDirf);
+        ln.on(Loconet.OPC_LOCO_SND).attach(this::onSnd);
+    }
+
+    int stat(int slot) { return stat[slot]; }
+    int address(int slot) { return address[slot]; }
+    int speed(int slot) { return speed[slot]; }
+
+    private static boolean valid(int slot) {
+        return slot >= 1 && slot < SLOTS;
+    }
+
+    private boolean inUse(int slot) {
+        return valid(slot) && (stat[slot] & BUSY_MASK) == IN_USE;
+    }
+
+    // throttle wants a slot for an address: the one that has it already, or a free one
+    private void onLocoAdr(LoconetPacket p) {
+        if (!p.checksumValid()) return;
+        int adr = p.address();
+        int slot = slotOf[adr];
+        if (slot == 0) {
+            for (int i=1; i<SLOTS && slot == 0; ++i) if ((stat[i] & BUSY_MASK) == FREE) slot = i;
+            if (slot == 0) {
+                longAck(Loconet.OPC_LOCO_ADR, 0); // no free slot
+                return;
+            }
+            take(slot, adr);
+        }
+        sendSlot(slot);
+    }
+
+    private void take(int slot, int adr) {
+        if (address[slot] != 0 && slotOf[address[slot]] == slot) slotOf[address[slot]] = 0;
+        address[slot] = adr;
+        slotOf[adr] = slot;
+        stat[slot] = IDLE | STEPS_128;
+        speed[slot] = 0;
+        dirf[slot] = 0;
+        snd[slot] = 0;
+        ss2[slot] = 0;
+        id1[slot] = 0;
+        id2[slot] = 0;
+        // loco may be running already, from the keyboard for instance
+        Model.Throttle t = model.findThrottle(adr);
+        if (t != null) copy(t, slot);
+    }
+
+    // only the null move (src == dst), the throttle marking the slot in use
+    private void onMoveSlots(LoconetPacket p) {
+        if (!p.checksumValid()) return;
+        int src = p.get(1);
+        int dst = p.get(2);
+        if (src != dst || !valid(src) || address[src] == 0) {
+            longAck(Loconet.OPC_MOVE_SLOTS, 0);
+            return;
+        }
+        stat[src] = (stat[src] & ~BUSY_MASK) | IN_USE;
+        Model.Throttle t = model.getThrottleFor(address[src]);
+        if (!t.hasError()) copy(t, src);
+        sendSlot(src);
+    }
+
+    private void onRequest(LoconetPacket p) {
+        if (!p.checksumValid()) return;
+        int slot = p.get(1);
+        if (!valid(slot)) {
+            longAck(Loconet.OPC_RQ_SL_DATA, 0);
+            return;
+        }
+        sendSlot(slot);
+    }
+
+    private void onWrite(LoconetPacket p) {
+        if (!p.checksumValid() || p.length() != 14) return;
+        int slot = p.get(2);
+        if (!valid(slot)) {
+            longAck(Loconet.OPC_WR_SL_DATA, 0);
+            return;
+        }
+        int adr = p.get(9) * 128 + p.get(4);
+        if (adr != address[slot]) {
+            if (address[slot] != 0 && slotOf[address[slot]] == slot) slotOf[address[slot]] = 0;
+            address[slot] = adr;
+            if (adr != 0) slotOf[adr] = slot;
+        }
+        stat[slot] = p.get(3);
+        speed[slot] = p.get(5);
+        dirf[slot] = p.get(6);
+        ss2[slot] = p.get(8);
+        snd[slot] = p.get(10);
+        id1[slot] = p.get(11);
+        id2[slot] = p.get(12);
+        longAck(Loconet.OPC_WR_SL_DATA, 0x7F);
+        apply(slot);
+    }
+
+    private void onStat1(LoconetPacket p) {
+        if (!p.checksumValid() || !valid(p.get(1))) return;
+        stat[p.get(1)] = p.get(2);
+    }
+
+    private void onSpeed(LoconetPacket p) {
+        if (!p.checksumValid() || !inUse(p.get(1))) return;
+        speed[p.get(1)] = p.get(2);
+        apply(p.get(1));
+    }
+
+    private void onDirf(LoconetPacket p) {
+        if (!p.checksumValid() || !inUse(p.get(1))) return;
+        dirf[p.get(1)] = p.get(2);
+        apply(p.get(1));
+    }
+
+    private void onSnd(LoconetPacket p) {
+        if (!p.checksumValid() || !inUse(p.get(1))) return;
+        snd[p.get(1)] = p.get(2);
+        apply(p.get(1));
+    }
+
+    // slot -> model throttle, only what differs
+    private void apply(int slot) {
+        if (!inUse(slot) || address[slot] == 0) return;
+        // take what the throttle wants first, the model reports back into the table while we change it
+        int spd = speed[slot];
+        int df = dirf[slot];
+        int fns = functions(df, snd[slot]);
+        Model.Throttle t = model.getThrottleFor(address[slot]);
+        if (t.hasError()) return;
+        if (spd == 1) {
+            if (!t.isEmergency()) t.emergencyStop();
+        } else if (t.getSpeed() != Math.max(0, spd - 1) || (spd == 0 && t.isEmergency())) {
+            t.setSpeed(Math.max(0, spd - 1));
+        }
+        boolean forward = (df & DIR) == 0;
+        if (t.getDirection() != forward) t.switchDirection();
+        for (int i=0; i<=8; ++i) {
+            if (t.getFunction(i) != (((fns >> i) & 1) != 0)) t.toggleFunction(i);
+        }
+    }
+
+    // F0-F8 as a bit mask, bit i is Fi
+    private static int functions(int dirf, int snd) {
+        return ((dirf & F0) != 0 ? 1 : 0) | ((dirf & 0x0F) << 1) | ((snd & 0x0F) << 5);
+    }
+
+    // model throttle -> slot
+    private void onThrottle(Model.Throttle t) {
+        if (t.hasError() || t.isReleased() || t.address >= slotOf.length) return;
+        int slot = slotOf[t.address];
+        if (slot != 0) copy(t, slot);
+    }
+
+    private void copy(Model.Throttle t, int slot) {
+        speed[slot] = t.isEmergency() ? 1 : t.getSpeed() == 0 ? 0 : t.getSpeed() + 1;
+        int fns = t.getFunctions();
+        dirf[slot] = (t.getDirection() ? 0 : DIR) | ((fns & 1) != 0 ? F0 : 0) | ((fns >> 1) & 0x0F);
+        snd[slot] = (fns >> 5) & 0x0F;
+    }
+
+    private void sendSlot(int slot) {
+        int trk = 0b0000_0110 | (model.power() ? 1 : 0); // loconet 1.1, not busy, power
+        model.transmit(model.packet().readSlot(slot, stat[slot], address[slot], speed[slot], dirf[slot], trk, ss2[slot],
+                snd[slot], id1[slot], id2[slot]), true);
+    }
+
+    private void longAck(int opcode, int ack) {
+        model.transmit(model.packet().longAck(opcode, ack), true);
+    }
+}
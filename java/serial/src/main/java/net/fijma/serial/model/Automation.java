@@ -0,0 +1,153 @@
+package net.fijma.serial.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+public class Automation {
+
+    // Rules reacting to sensor and turnout changes. Rules are compiled into per-address tables, so a change only
+    // runs the handful of rules listening to that address, never the whole rule set. Everything runs straight from
+    // the layout change event on the thread that decoded the packet, the resulting commands go out through the
+    // writer as usual (stop-at-sensor within one slot write interval).
+
+    public interface Rule {
+        // state: sensor occupied, or turnout closed
+        void fire(boolean state);
+    }
+
+    private static final int MAX_DEPTH = 8; // rules setting turnouts that trigger rules that set turnouts that ...
+
+    private final Model model;
+    private final LayoutState layout;
+    private final Rule[][] sensorRules = new Rule[LayoutState.SENSORS][];
+    private final Rule[][] turnoutRules = new Rule[LayoutState.TURNOUTS][];
+    private int count;
+    private int depth;
+
+    public Automation(Model model) {
+        this.model = model;
+        this.layout = model.layout;
+        layout.sensorChanged.attach(adr -> fire(sensorRules[adr], layout.isOccupied(adr), "sensor " + adr));
+        layout.turnoutChanged.attach(adr -> fire(turnoutRules[adr], layout.isClosed(adr), "turnout " + adr));
+    }
+
+    private void fire(Rule[] rules, boolean state, Object what) {
+        if (rules == null) return;
+        if (depth >= MAX_DEPTH) {
+            model.onMsg("Automation loop at " + what);
+            return;
+        }
+        ++depth;
+        try {
+            for (Rule r : rules) r.fire(state);
+        } finally {
+            --depth;
+        }
+    }
+
+    public int size() { return count; }
+
+    public void onSensor(int sensor, Rule rule) {
+        check(sensor, LayoutState.SENSORS, "sensor");
+        sensorRules[sensor] = add(sensorRules[sensor], rule);
+    }
+
+    public void onTurnout(int turnout, Rule rule) {
+        check(turnout, LayoutState.TURNOUTS, "turnout");
+        turnoutRules[turnout] = add(turnoutRules[turnout], rule);
+    }
+
+    private Rule[] add(Rule[] rules, Rule rule) {
+        ++count;
+        if (rules == null) return new Rule[] { rule };
+        Rule[] result = Arrays.copyOf(rules, rules.length + 1);
+        result[rules.length] = rule;
+        return result;
+    }
+
+    private static void check(int address, int max, String what) {
+        if (address < 0 || address >= max) throw new IllegalArgumentException("Invalid " + what + " address " + address);
+    }
+
+    // stop loco (if we have a throttle for it) as soon as it runs into sensor
+    public void stopAt(int sensor, int loco) {
+        onSensor(sensor, occupied -> {
+            if (!occupied) return;
+            Model.Throttle t = model.findThrottle(loco);
+            if (t != null && (t.getTargetSpeed() > 0 || t.getSpeed() > 0)) t.setSpeed(0);
+        });
+    }
+
+    // signal (an accessory address) shows red (thrown) while the block is occupied, green (closed) when free
+    public void block(int sensor, int signal) {
+        check(signal, LayoutState.TURNOUTS, "signal");
+        onSensor(sensor, occupied -> model.set_OPC_SW_REQ(signal, !occupied, true));
+    }
+
+    // set turnouts when a train enters sensor, only the ones not in the right position already
+    public void route(int sensor, int[] turnouts, boolean[] closed) {
+        if (turnouts.length != closed.length) throw new IllegalArgumentException("Route needs a direction per turnout");
+        for (int t : turnouts) check(t, LayoutState.TURNOUTS, "turnout");
+        int[] ts = turnouts.clone();
+        boolean[] cs = closed.clone();
+        onSensor(sensor, occupied -> {
+            if (!occupied) return;
+            for (int i=0; i<ts.length; ++i) {
+                if (layout.isTurnoutKnown(ts[i]) && layout.isClosed(ts[i]) == cs[i]) continue;
+                model.set_OPC_SW_REQ(ts[i], cs[i], true);
+            }
+        });
+    }
+
+    // Rules file, one rule per line, '#' starts a comment:
+    //   stop <sensor> <loco>
+    //   block <sensor> <signal>
+    //   route <sensor> <turnout>c|t ...      (c: closed, t: thrown)
+    public void load(Reader in) throws IOException {
+        BufferedReader r = new BufferedReader(in);
+        String line;
+        int n = 0;
+        while ((line = r.readLine()) != null) {
+            ++n;
+            int hash = line.indexOf('#');
+            if (hash >= 0) line = line.substring(0, hash);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            try {
+                compile(line.split("\\s+"));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("line " + n + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void compile(String[] ws) {
+        if (ws.length < 3) throw new IllegalArgumentException("Incomplete rule");
+        int sensor = Integer.parseInt(ws[1]);
+        switch (ws[0]) {
+            case "stop":
+                stopAt(sensor, Integer.parseInt(ws[2]));
+                break;
+            case "block":
+                block(sensor, Integer.parseInt(ws[2]));
+                break;
+            case "route": {
+                int[] turnouts = new int[ws.length - 2];
+                boolean[] closed = new boolean[turnouts.length];
+                for (int i=0; i<turnouts.length; ++i) {
+                    String w = ws[i+2];
+                    char d = w.charAt(w.length() - 1);
+                    if (d != 'c' && d != 't') throw new IllegalArgumentException("Turnout without direction: " + w);
+                    turnouts[i] = Integer.parseInt(w.substring(0, w.length() - 1));
+                    closed[i] = d == 'c';
+                }
+                route(sensor, turnouts, closed);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown rule: " + ws[0]);
+        }
+    }
+}
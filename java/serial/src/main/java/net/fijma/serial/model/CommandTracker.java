@@ -0,0 +1,126 @@
+package net.fijma.serial.model;
+
+import java.util.concurrent.TimeUnit;
+
+public class CommandTracker {
+
+    // Correlates commands written to the controller with its replies. The sketch executes commands strictly in order
+    // and answers every one with a single "OK ..." or "ERROR ..." line (see Com.cpp), so a FIFO of send times is all
+    // we need. Commands without a reply within the timeout are counted as lost.
+    // Latencies go in a histogram with four buckets per power of two (microseconds), good for 25% precision.
+
+    public static final long DEFAULT_TIMEOUT = 1000; // ms
+    private static final int IN_FLIGHT = 256;
+    private static final int BUCKETS = 8 + 4 * 61;
+
+    private final long timeoutNanos;
+    private final long started = System.nanoTime();
+
+    private final long[] inFlight = new long[IN_FLIGHT]; // send times, ring
+    private int head = 0;
+    private int count = 0;
+
+    private final long[] histogram = new long[BUCKETS];
+    private long sent = 0;
+    private long acknowledged = 0;
+    private long errors = 0;
+    private long lost = 0;
+
+    public CommandTracker(long timeoutMillis) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    public synchronized void sent(long now) {
+        expire(now);
+        if (count == IN_FLIGHT) {
+            // way too many unanswered commands, give up on the oldest one
+            drop();
+            lost++;
+        }
+        inFlight[(head + count) % IN_FLIGHT] = now;
+        count++;
+        sent++;
+    }
+
+    // last n sent commands never made it to the controller (write failed), they will not be answered
+    public synchronized void unsent(int n) {
+        n = Math.min(n, count);
+        count -= n;
+        sent -= n;
+    }
+
+    public synchronized void reply(boolean ok, long now) {
+        expire(now);
+        if (count == 0) return; // unsolicited, or belonging to a command we already gave up on
+        long latency = now - inFlight[head];
+        drop();
+        if (ok) acknowledged++; else errors++;
+        histogram[bucket(TimeUnit.NANOSECONDS.toMicros(latency))]++;
+    }
+
+    private void expire(long now) {
+        while (count > 0 && now - inFlight[head] > timeoutNanos) {
+            drop();
+            lost++;
+        }
+    }
+
+    private void drop() {
+        head = (head + 1) % IN_FLIGHT;
+        count--;
+    }
+
+    private static int bucket(long micros) {
+        if (micros < 8) return (int) Math.max(0, micros);
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >> (exp - 2)) & 3;
+        return 8 + (exp - 3) * 4 + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 8) return bucket;
+        int exp = (bucket - 8) / 4 + 3;
+        int sub = (bucket - 8) % 4;
+        return ((4L + sub + 1) << (exp - 2)) - 1;
+    }
+
+    public synchronized long sent() { return sent; }
+    public synchronized long acknowledged() { return acknowledged; }
+    public synchronized long errors() { return errors; }
+    public synchronized long lost() { return lost; }
+    public synchronized int inFlight() { return count; }
+
+    // latency in microseconds below which fraction p (0..1) of the replies fall, -1 if there are none
+    public synchronized long percentile(double p) {
+        long total = 0;
+        for (long c : histogram) total += c;
+        if (total == 0) return -1;
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i=0; i<BUCKETS; ++i) {
+            seen += histogram[i];
+            if (seen >= Math.max(1, rank)) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    public synchronized double errorRate() {
+        long answered = acknowledged + errors + lost;
+        return answered == 0 ? 0.0 : (double) (errors + lost) / answered;
+    }
+
+    // commands per second since start
+    public synchronized double throughput(long now) {
+        double seconds = (now - started) / 1e9;
+        return seconds <= 0 ? 0.0 : sent / seconds;
+    }
+
+    public String summary() {
+        long now = System.nanoTime();
+        synchronized (this) {
+            return String.format("cmds=%d ok=%d err=%d lost=%d inflight=%d rate=%.1f/s errors=%.1f%% p50=%.1fms p99=%.1fms",
+                    sent, acknowledged, errors, lost, count, throughput(now), 100 * errorRate(),
+                    percentile(0.5) / 1000.0, percentile(0.99) / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package net.fijma.serial.model;
+
+import net.fijma.mvc.Event;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class CommandWriter {
+
+    // Writes commands to the controller on a dedicated thread, so a slow or stalled serial link never blocks key
+    // handling or drawing. Commands are taken from three lanes, in this order: urgent (power off, emergency stop),
+    // normal (power on, loconet packets) and the coalesced slot updates. The lanes are bounded: when one is full,
+    // submit() rejects the command right away instead of blocking the caller.
+    // A failed write is reported per command line through the event below, on the writer thread. Successful writes
+    // are only counted, by the tracker, replies are matched there as well.
+
+    public static final int URGENT = 0;
+    public static final int NORMAL = 1;
+    public static final int DEFAULT_DEPTH = 32;
+
+    public final Event<String> failed = new Event<>();
+
+    private final Port port;
+    private final SlotWriter slots;
+    private final CommandTracker tracker;
+    private final ArrayBlockingQueue<String> urgent;
+    private final ArrayBlockingQueue<String> normal;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public CommandWriter(Port port, CommandTracker tracker, int nslots, long slotWriteInterval, int depth) {
+        this.port = port;
+        this.tracker = tracker;
+        this.slots = new SlotWriter(nslots, slotWriteInterval);
+        this.urgent = new ArrayBlockingQueue<>(depth);
+        this.normal = new ArrayBlockingQueue<>(depth);
+        thread = new Thread(this::run, "serial-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean submit(int lane, String cmd) {
+        boolean accepted = (lane == URGENT ? urgent : normal).offer(cmd);
+        if (accepted) wakeup();
+        return accepted;
+    }
+
+    public void updateSlot(int slot, CharSequence cmd) {
+        slots.update(slot, cmd);
+        wakeup();
+    }
+
+    public void cancelSlot(int slot) {
+        slots.cancel(slot);
+    }
+
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private synchronized void wakeup() {
+        notifyAll();
+    }
+
+    private synchronized void await() throws InterruptedException {
+        // re-check under the lock, a submit between next() and here has either been seen or will notify us
+        if (!urgent.isEmpty() || !normal.isEmpty()) return;
+        long delay = slots.nanosUntilDue(System.nanoTime());
+        if (delay == 0) return;
+        if (delay == Long.MAX_VALUE) {
+            wait();
+        } else {
+            TimeUnit.NANOSECONDS.timedWait(this, delay);
+        }
+    }
+
+    private String[] next() {
+        String cmd = urgent.poll();
+        if (cmd == null) cmd = normal.poll();
+        if (cmd != null) return new String[] { cmd };
+        return slots.takeDue(System.nanoTime());
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                String[] cmds = next();
+                if (cmds == null) {
+                    await();
+                } else {
+                    write(cmds);
+                }
+            } catch (InterruptedException e) {
+                // closing
+            }
+        }
+    }
+
+    private void write(String[] cmds) {
+        // a batch of slot updates goes out in a single write
+        StringBuilder sb = new StringBuilder();
+        for (String cmd : cmds) sb.append(cmd).append("\n");
+        // register before writing, the reply may be in before write() returns
+        long now = System.nanoTime();
+        for (String ignored : cmds) tracker.sent(now);
+        try {
+            port.write(sb.toString());
+        } catch (IOException e) {
+            tracker.unsent(cmds.length);
+            for (String cmd : cmds) failed.trigger(cmd);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package net.fijma.serial.model;
+
+import net.fijma.mvc.Event;
+
+import java.util.BitSet;
+
+public class LayoutState {
+
+    // Last known state of the sensors (OPC_INPUT_REP) and turnouts (OPC_SW_REQ) on LocoNet, as packed bits, so
+    // anybody can ask "is block 317 occupied?" in O(1) instead of digging through the message log.
+    // The events fire with the address, only when a state actually changes.
+    // Addresses out of range are simply never known: updates are ignored, queries answer false and ranges only
+    // cover the part that is in range, so nobody has to check an address that came off the wire.
+
+    public static final int SENSORS = 4096;
+    public static final int TURNOUTS = 2048;
+
+    public final Event<Integer> sensorChanged = new Event<>();
+    public final Event<Integer> turnoutChanged = new Event<>();
+
+    private final long[] occupied = new long[SENSORS / 64];
+    private final long[] sensorKnown = new long[SENSORS / 64];
+    private final long[] closed = new long[TURNOUTS / 64];
+    private final long[] turnoutKnown = new long[TURNOUTS / 64];
+
+    private static boolean get(long[] bits, int i) {
+        if (i < 0 || i >= 64 * bits.length) return false;
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    // set bit i to b, true if it changed
+    private static boolean set(long[] bits, int i, boolean b) {
+        long mask = 1L << i;
+        long old = bits[i >>> 6];
+        bits[i >>> 6] = b ? old | mask : old & ~mask;
+        return old != bits[i >>> 6];
+    }
+
+    public void sensor(int address, boolean high) {
+        if (address < 0 || address >= SENSORS) return;
+        boolean known = !set(sensorKnown, address, true);
+        if (set(occupied, address, high) || !known) sensorChanged.trigger(address);
+    }
+
+    // direction as in OPC_SW_REQ: true is closed (straight), false is thrown
+    public void turnout(int address, boolean direction) {
+        if (address < 0 || address >= TURNOUTS) return;
+        boolean known = !set(turnoutKnown, address, true);
+        if (set(closed, address, direction) || !known) turnoutChanged.trigger(address);
+    }
+
+    public boolean isOccupied(int address) { return get(occupied, address); }
+    public boolean isSensorKnown(int address) { return get(sensorKnown, address); }
+
+    public boolean isClosed(int address) { return get(closed, address); }
+    public boolean isTurnoutKnown(int address) { return get(turnoutKnown, address); }
+
+    // occupancy of sensors from (inclusive) to (exclusive), bit i is sensor from+i
+    public BitSet sensors(int from, int to) {
+        return range(occupied, from, to);
+    }
+
+    // direction of turnouts from (inclusive) to (exclusive), bit i is turnout from+i
+    public BitSet turnouts(int from, int to) {
+        return range(closed, from, to);
+    }
+
+    private static BitSet range(long[] bits, int from, int to) {
+        BitSet all = BitSet.valueOf(bits);
+        BitSet result = new BitSet();
+        int end = Math.min(to, 64 * bits.length);
+        for (int i = all.nextSetBit(Math.max(0, from)); i >= 0 && i < end; i = all.nextSetBit(i + 1)) {
+            result.set(i - from);
+        }
+        return result;
+    }
+}
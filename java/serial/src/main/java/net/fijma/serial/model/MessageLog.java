@@ -0,0 +1,122 @@
+package net.fijma.serial.model;
+
+import net.fijma.serial.LoconetPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class MessageLog {
+
+    // Fixed capacity ring of the most recent messages. A writer claims a position with a single atomic increment
+    // and overwrites the oldest entry, so adding is O(1) and never blocks or copies. Readers never block either; they
+    // may see a slot that got overwritten while reading, which is fine for a log.
+    // Messages are any object, turned into text by toString() the first time somebody reads them. Most of the busy
+    // traffic (loconet packets) scrolls out of the ring without ever being formatted.
+    // Loconet packets aren't even copied into a new object: every position has a packet of its own, created the
+    // first time a packet lands there, that is overwritten in place. A version number tells a reader on another
+    // thread that the packet changed under it, it then reads it again.
+    private final AtomicReferenceArray<Object> entries;
+    private final Packet[] packets;
+    private final int mask;
+    private final AtomicLong added = new AtomicLong();
+
+    public MessageLog(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        // round up to a power of two, so the index is a simple mask
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        entries = new AtomicReferenceArray<>(size);
+        packets = new Packet[size];
+        mask = size - 1;
+    }
+
+    private static final class Packet {
+        final LoconetPacket packet = new LoconetPacket();
+        volatile int version; // odd while being overwritten
+        volatile Text text; // formatted, of the version it says
+
+        void set(LoconetPacket p) {
+            version++;
+            packet.copyFrom(p);
+            version++;
+        }
+
+        @Override
+        public String toString() {
+            while (true) {
+                int v = version;
+                if ((v & 1) != 0) continue;
+                Text t = text;
+                if (t != null && t.version == v) return t.text;
+                String s = packet.toString();
+                if (v != version) continue;
+                text = new Text(v, s);
+                return s;
+            }
+        }
+    }
+
+    private static final class Text {
+        final int version;
+        final String text;
+
+        Text(int version, String text) {
+            this.version = version;
+            this.text = text;
+        }
+    }
+
+    public void add(Object s) {
+        long seq = added.getAndIncrement();
+        entries.set((int) (seq & mask), s);
+    }
+
+    // copy of a packet that is only valid during the call, like the one handed out by the decoder; a single writer
+    // thread only
+    public void add(LoconetPacket p) {
+        long seq = added.getAndIncrement();
+        int index = (int) (seq & mask);
+        Packet packet = packets[index];
+        if (packet == null) packet = packets[index] = new Packet();
+        packet.set(p);
+        entries.set(index, packet);
+    }
+
+    public int capacity() { return mask + 1; }
+
+    // total number of messages ever added
+    public long count() { return added.get(); }
+
+    // number of messages available
+    public int size() { return (int) Math.min(added.get(), capacity()); }
+
+    // i-th most recent message, 0 is the newest
+    public String get(int i) {
+        long last = added.get() - 1;
+        if (i < 0 || i >= size()) throw new IndexOutOfBoundsException("no message " + i);
+        return text((int) ((last - i) & mask));
+    }
+
+    // format once, keep the text
+    private String text(int index) {
+        Object o = entries.get(index);
+        if (o == null || o instanceof String) return (String) o;
+        if (o instanceof Packet) return o.toString();
+        String s = o.toString();
+        entries.compareAndSet(index, o, s);
+        return s;
+    }
+
+    // copy of at most max messages, newest first
+    public List<String> snapshot(int max) {
+        long last = added.get() - 1;
+        int n = (int) Math.min(Math.min(max, capacity()), last + 1);
+        List<String> result = new ArrayList<>(n);
+        for (int i=0; i<n; ++i) {
+            result.add(text((int) ((last - i) & mask)));
+        }
+        return result;
+    }
+}
@@ -2,174 +2,552 @@ package net.fijma.serial.model;
 
 import net.fijma.mvc.Event;
 import net.fijma.mvc.serial.Serial;
+import net.fijma.serial.LoconetPacket;
 
-import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class Model {
 
-    private static final int NSLOTS = 2;
-    private static final int FUNCTIONS = 13; // F0-F12
+    public static final int DEFAULT_SLOTS = 10; // SLOTS in the sketch's Config.h
+    public static final int FUNCTIONS = 29; // F0-F28, bit i of the function mask is Fi
+    private static final int FIRMWARE_FUNCTIONS = 13; // F0-F12, the ones the sketch refreshes
+    public static final int DEFAULT_LOG_SIZE = 1024;
+    public static final long DEFAULT_SLOT_WRITE_INTERVAL = 50; // ms, at most 20 slot updates per second
+    public static final long DEFAULT_ROTATE_INTERVAL = 500; // ms, parked locos take turns in the idle slots
 
     private static final String NO_SLOTS = "No free slots";
+    private static final String INVALID_ADDRESS = "Invalid address";
     private static final String IO_ERROR = "IO error";
+    private static final String QUEUE_FULL = "Command queue full";
 
-    public final Serial serial;
     public final Event<Throttle> throttleChanged = new Event<>();
-    public final Event<List<String>> msg = new Event<>();
+    public final Event<MessageLog> msg = new Event<>();
     public final Event<Boolean> powerChanged = new Event<>();
+    public final LayoutState layout = new LayoutState();
 
     // Very nice discussion of a basic implementation of MVC in JavaAhumScript:
     // https://medium.com/@ToddZebert/a-walk-through-of-a-simple-javascript-mvc-implementation-c188a69138dc
 
     // basically, model is number of throttles and a onMsg ring
-    private final Throttle[] slots = new Throttle[NSLOTS];
-    private final ArrayList<String> msgs = new ArrayList<>();
+    // Throttles are virtual, any number of them, one per loco. Only the ones in a slot of the controller's refresh
+    // buffer (resident) get refreshed. Moving locos always are, the parked ones (speed 0) take turns in the idle
+    // slots, so their function state (lights, sound) gets refreshed once in a while as well.
+    private final Throttle[] throttles = new Throttle[SlotAllocator.MAX_ADDRESS + 1]; // by address
+    private final Throttle[] slots; // resident throttles, by slot
+    private final ArrayDeque<Throttle> parked = new ArrayDeque<>(); // waiting for their turn, longest first
+    private long rotateInterval = DEFAULT_ROTATE_INTERVAL * 1_000_000;
+    private long nextRotation;
+    private long maxRefreshGap; // ns, longest a parked throttle had to wait for its turn
+    // what other threads get to see: an immutable state per loco, null if none, replaced on every change
+    private final AtomicReferenceArray<ThrottleState> states = new AtomicReferenceArray<>(SlotAllocator.MAX_ADDRESS + 1);
+    private long version;
+    private final SlotAllocator allocator;
+    private final MessageLog msgs;
+    private final CommandWriter writer;
+    private final CommandTracker tracker = new CommandTracker(CommandTracker.DEFAULT_TIMEOUT);
     private boolean power = false;
+    private boolean compactSlots = false;
+    // momentum: throttles on their way to their target speed, advanced by tick()
+    private final ArrayList<Throttle> ramping = new ArrayList<>();
+    // by address, null for the default profile
+    private final SpeedProfile[] profiles = new SpeedProfile[SlotAllocator.MAX_ADDRESS + 1];
+    private SpeedProfile defaultProfile = SpeedProfile.NONE;
+    private long lastTick;
+    private final PacketBuilder packet = new PacketBuilder();
+    // slot updates are encoded into these and copied by the SlotWriter
+    private final SlotFrame frame = new SlotFrame();
+    private final StringBuilder slotCommand = new StringBuilder(32);
+    private final TransmitQueue tx = new TransmitQueue(CommandWriter.DEFAULT_DEPTH, TransmitQueue.DEFAULT_ACK_TIMEOUT);
+    private volatile Thread batch; // thread applying a batch, its messages are announced once at the end
+    private int batchDepth;
+    private boolean msgPending;
+    private final ConcurrentLinkedQueue<String> failed = new ConcurrentLinkedQueue<>(); // commands the writer lost
 
     public Model(Serial serial) {
-        this.serial = serial;
+        this(serial::write, DEFAULT_SLOTS, DEFAULT_LOG_SIZE, DEFAULT_SLOT_WRITE_INTERVAL);
+    }
+
+    public Model(Port port, int nslots, int logSize, long slotWriteInterval) {
+        this.slots = new Throttle[nslots];
+        this.allocator = new SlotAllocator(nslots);
+        this.msgs = new MessageLog(logSize);
+        this.writer = new CommandWriter(port, tracker, nslots, slotWriteInterval, CommandWriter.DEFAULT_DEPTH);
+        // on the writer thread: written commands are counted by the tracker already, failures are logged by tick()
+        writer.failed.attach(failed::add);
     }
 
     public Throttle getThrottleFor(int address) {
-        // get or create throttle for address, while SLOTS last
-        int i=0;
-        while (i<NSLOTS && slots[i] != null && slots[i].address!= address) ++i;
-        if (i>=NSLOTS) {
-            // no more free slots
-            onMsg(NO_SLOTS);
+        // get or create throttle for address, in a slot if one is free or idle, parked otherwise
+        if (address < 1 || address > SlotAllocator.MAX_ADDRESS) {
+            onMsg(INVALID_ADDRESS);
             return errorThrottle;
         }
-        if (slots[i] == null) {
-            slots[i] = new Throttle(i, address);
-            // initial update of refresh buffer
-            throttleChanged(slots[i]);
+        Throttle t = throttles[address];
+        if (t != null) return t;
+
+        t = new Throttle(address);
+        throttles[address] = t;
+        long now = System.nanoTime();
+        if (!load(t, now)) park(t, now);
+        // initial update of refresh buffer
+        throttleChanged(t);
+        return t;
+    }
+
+    // throttle for address if we have one, without creating it
+    public Throttle findThrottle(int address) {
+        if (address < 1 || address > SlotAllocator.MAX_ADDRESS) return null;
+        return throttles[address];
+    }
+
+    public int slotCount() { return slots.length; }
+
+    // interval at which parked throttles take turns in the idle slots
+    public void setRotateInterval(long ms) { this.rotateInterval = ms * 1_000_000; }
+
+    // ms, the longest any parked throttle had to wait for a slot so far
+    public long maxRefreshGap() { return maxRefreshGap / 1_000_000; }
+
+    public int parkedCount() {
+        int n = 0;
+        for (Throttle t : parked) if (t.slot == SlotAllocator.NONE && !t.released) ++n;
+        return n;
+    }
+
+    // put t in a slot: a free one, or the one idle the longest, parking its current throttle
+    private boolean load(Throttle t, long now) {
+        int slot = allocator.allocate();
+        if (slot == SlotAllocator.NONE) return false;
+        if (slots[slot] != null) evict(slots[slot], now);
+        allocator.assign(slot);
+        slots[slot] = t;
+        t.slot = slot;
+        if (t.parkedSince != 0) {
+            long gap = now - t.parkedSince;
+            t.maxRefreshGap = Math.max(t.maxRefreshGap, gap);
+            maxRefreshGap = Math.max(maxRefreshGap, gap);
+        }
+        return true;
+    }
+
+    private void evict(Throttle t, long now) {
+        slots[t.slot] = null;
+        t.slot = SlotAllocator.NONE;
+        park(t, now);
+        publish(t);
+        throttleChanged.trigger(t);
+    }
+
+    private void park(Throttle t, long now) {
+        t.parkedSince = now;
+        if (t.queued) return; // still in there from last time
+        t.queued = true;
+        parked.addLast(t);
+    }
+
+    // next parked throttle, skipping the ones that got a slot or were released in the meantime
+    private Throttle nextParked() {
+        Throttle t;
+        while ((t = parked.pollFirst()) != null) {
+            t.queued = false;
+            if (t.slot == SlotAllocator.NONE && !t.released) return t;
+        }
+        return null;
+    }
+
+    // Called regularly from the thread owning the model. Every rotate interval the throttles that have been
+    // parked longest replace the throttles that have been idle in a slot longest, at most one round of slots.
+    // With p parked throttles and i idle slots each of them waits about p / i rotate intervals for its turn.
+    public void tick(long now) {
+        String cmd;
+        while ((cmd = failed.poll()) != null) onMsg(IO_ERROR + ": " + cmd);
+        // loconet packet that never got confirmed
+        if (tx.size() > 0) pumpTransmit(now);
+        ramp(now);
+        if (parked.isEmpty() || now - nextRotation < 0) return;
+        nextRotation = now + rotateInterval;
+        for (int n = allocator.available(); n > 0; --n) {
+            Throttle t = nextParked();
+            if (t == null) break;
+            if (!load(t, now)) {
+                park(t, now);
+                break;
+            }
+            throttleChanged(t);
         }
-        assert(slots[i].address == address);
-        return slots[i];
     }
 
-    // add msg
-    public void onMsg(String s) {
-        if (msgs.size() > 100) msgs.remove(msgs.size()-1);
-        msgs.add(0, s);
+    public void setDefaultProfile(SpeedProfile profile) { this.defaultProfile = profile; }
+
+    // profile for loco address, from now on
+    public void setProfile(int address, SpeedProfile profile) {
+        if (address < 1 || address > SlotAllocator.MAX_ADDRESS) return;
+        profiles[address] = profile;
+    }
+
+    private SpeedProfile profile(Throttle t) {
+        SpeedProfile p = profiles[t.address];
+        return p == null ? defaultProfile : p;
+    }
+
+    // One step of momentum for every throttle on its way to its target speed, all from this one ticker, however
+    // many locos are ramping. The slot updates of a tick end up in the same write (SlotWriter coalesces them).
+    private void ramp(long now) {
+        double dt = (now - lastTick) / 1e9;
+        lastTick = now;
+        if (ramping.isEmpty()) return;
+        dt = Math.min(dt, 0.1); // we were not ticked for a while, don't jump
+        for (int i=ramping.size()-1; i>=0; --i) {
+            Throttle t = ramping.get(i);
+            SpeedProfile p = profile(t);
+            double rate = t.target > t.position ? p.accel : p.decel;
+            if (rate <= 0 || t.released) {
+                t.position = t.target;
+            } else if (t.target > t.position) {
+                t.position = Math.min(t.target, t.position + rate * dt);
+            } else {
+                t.position = Math.max(t.target, t.position - rate * dt);
+            }
+            int speed = (int) Math.round(t.position);
+            if (speed != t.speed) {
+                t.speed = speed;
+                throttleChanged(t);
+            }
+            if (t.position == t.target || t.speed == 0 && t.target == 0) {
+                t.position = t.target;
+                t.ramping = false;
+                ramping.set(i, ramping.get(ramping.size() - 1));
+                ramping.remove(ramping.size() - 1);
+            }
+        }
+    }
+
+    // latest published state of the throttle for address, null if none, from any thread
+    public ThrottleState state(int address) {
+        return address < 0 || address >= states.length() ? null : states.get(address);
+    }
+
+    // latest published state of every throttle, each one consistent on its own, from any thread
+    public List<ThrottleState> states() {
+        List<ThrottleState> result = new ArrayList<>();
+        for (int i=0; i<states.length(); ++i) {
+            ThrottleState s = states.get(i);
+            if (s != null) result.add(s);
+        }
+        return result;
+    }
+
+    // one allocation per change, the state itself, no pooling: a reader may hang on to it as long as it likes
+    private void publish(Throttle t) {
+        states.set(t.address, new ThrottleState(t.slot, t.address, t.speed, t.direction, t.emergency, t.fns,
+                t.slot == SlotAllocator.NONE ? t.parkedSince : 0, t.maxRefreshGap / 1_000_000, ++version));
+    }
+
+    // Done with the loco. It is stopped first: the sketch keeps refreshing the last command of the slot, and the
+    // decoder keeps running at the speed it was last told, so just forgetting a moving loco leaves it running.
+    public void releaseThrottle(Throttle t) {
+        if (t.hasError() || t.released) return;
+        throttles[t.address] = null;
+        states.set(t.address, null);
+        t.released = true;
+        t.speed = 0;
+        t.target = 0;
+        t.position = 0;
+        int slot = t.slot;
+        if (slot != SlotAllocator.NONE) {
+            // ahead of the slot updates, whoever gets the slot next only gets it after this
+            writer.cancelSlot(slot);
+            submit(CommandWriter.NORMAL, slotCommand(slot, t.address, 0, t.direction, t.fns).toString());
+            allocator.release(slot);
+            slots[slot] = null;
+        }
+        // the throttle is gone, let views holding on to it know
+        throttleChanged.trigger(t);
+        if (slot == SlotAllocator.NONE) return;
+        // somebody parked may have the slot straight away
+        long now = System.nanoTime();
+        Throttle p = nextParked();
+        if (p != null && load(p, now)) throttleChanged(p);
+    }
+
+    // add msg, anything with a toString(), formatted only when shown
+    public void onMsg(Object s) {
+        msgs.add(s);
+        announce();
+    }
+
+    // add a packet only valid during the call (the decoder's), copied into the log without allocating
+    public void onPacket(LoconetPacket p) {
+        msgs.add(p);
+        announce();
+    }
+
+    private void announce() {
+        if (batch == Thread.currentThread()) {
+            msgPending = true;
+            return;
+        }
         msg.trigger(msgs);
     }
 
+    // Apply a burst of updates (a batch of loconet packets, say) with a single msg event at the end, instead of
+    // one redraw per message. Nests, only the outermost endBatch() triggers. Other threads are not affected.
+    public void beginBatch() {
+        if (batchDepth++ == 0) batch = Thread.currentThread();
+    }
+
+    public void endBatch() {
+        if (--batchDepth > 0) return;
+        batch = null;
+        if (msgPending) {
+            msgPending = false;
+            msg.trigger(msgs);
+        }
+    }
+
+    // reply of the controller to one of our commands, "OK ..." or "ERROR ..."
+    public void onReply(String line) {
+        long now = System.nanoTime();
+        tracker.reply(line.startsWith("OK"), now);
+        onMsg(line);
+        if (line.startsWith("OK #bytes=")) {
+            // the sketch took the last loconet packet, next one
+            tx.acked();
+            pumpTransmit(now);
+        }
+    }
+
+    public CommandTracker commands() { return tracker; }
+
+    // the message log, on the model thread
+    public MessageLog messages() { return msgs; }
+
     public boolean power() { return power; }
 
     public void setPower(boolean power) {
         if (this.power == power) return;
         this.power = power;
 
-        try {
-            // send S ("SLOT") cmd
-            StringBuilder sb = new StringBuilder();
-            if (this.power) {
-                sb.append("P"); // power on command
-            } else {
-                sb.append("O"); // power off command
-            }
-            onMsg(sb.toString());
-            sb.append("\n");
-            serial.write(sb.toString());
-        } catch (IOException e) {
-            onMsg(IO_ERROR);
+        if (this.power) {
+            submit(CommandWriter.NORMAL, "P"); // power on command
+        } else {
+            submit(CommandWriter.URGENT, "O"); // power off command, ahead of anything else
         }
 
         powerChanged.trigger(this.power);
     }
 
     public void set_OPC_SW_REQ(int adr, boolean dir, boolean on) {
-        try {
-            StringBuilder sb = new StringBuilder("L B0 ");
-            int sw1 = adr / 16; // high bits of address
-            int sw2 = adr % 16; // low bits of address
-            if (dir) {
-                sw2 = sw2 | 0b0010_0000;
-            }
-            if (on) {
-                sw2 = sw2 | 0b0001_0000;
-            }
-            sb.append(String.format("%02X", sw1)).append(" ").append(String.format("%02X", sw2));
-            onMsg(sb.toString());
-            sb.append("\n");
-            serial.write(sb.toString());
-        } catch (IOException e) {
-            onMsg(IO_ERROR);
+        transmit(packet.switchRequest(adr, dir, on), false);
+        // don't wait for loconet to tell us
+        layout.turnout(adr, dir);
+    }
+
+    // the packet builder of the model thread, fill it and hand it to transmit()
+    public PacketBuilder packet() { return packet; }
+
+    // queue a loconet packet, it goes out through the "L" command once the sketch confirmed the previous one.
+    // Urgent ones, replies a throttle on the bus is waiting for, go ahead of the others.
+    public void transmit(PacketBuilder p, boolean urgent) {
+        String cmd = p.command();
+        if (!tx.offer(cmd, urgent)) {
+            onMsg(QUEUE_FULL + ": " + cmd);
+            return;
         }
+        pumpTransmit(System.nanoTime());
+    }
+
+    private void pumpTransmit(long now) {
+        String cmd = tx.next(now);
+        if (cmd != null && !writer.submit(tx.wasUrgent() ? CommandWriter.URGENT : CommandWriter.NORMAL, cmd)) {
+            // no ack will come for it, don't wait for the timeout
+            tx.rejected(cmd);
+        }
+    }
+
+    private void submit(int lane, String cmd) {
+        if (!writer.submit(lane, cmd)) onMsg(QUEUE_FULL + ": " + cmd);
     }
 
     // Poor little controller expects order FL-F4-F3-F2-F1-F8-F7-F6-F5-F12-F11-F10-F9
     // We have them in order FL-F1-F2-F3-F4-F5-F6-F7-F8-F9-F10-F11-F12
-    // Let us do the heavy lifting
-    private static final int[] functionBitReorder = {
-            0,
-            4,
-            3,
-            2,
-            1,
-            8,
-            7,
-            6,
-            5,
-            12,
-            11,
-            10,
-            9
-    };
+    // Let us do the heavy lifting: printed MSB first, it is just the three nibbles in reverse order, FL on top
+    public static final int GROUP_F0_F4 = 0b1_1111;
+    public static final int GROUP_F5_F8 = 0b1_1110_0000;
+    public static final int GROUP_F9_F12 = 0b1_1110_0000_0000;
+    private static final int FIRMWARE_GROUPS = GROUP_F0_F4 | GROUP_F5_F8 | GROUP_F9_F12;
+
+    // F13 and up the sketch doesn't refresh, they go to the decoder as a dcc packet through OPC_IMM_PACKET,
+    // repeated a few times as they won't be refreshed
+    private static final int DCC_F13_F20 = 0xDE;
+    private static final int DCC_F21_F28 = 0xDF;
+    private static final int IMM_REPS = 4;
+
+    private void sendExtendedFunctions(Throttle t, int fn) {
+        int instruction = fn <= 20 ? DCC_F13_F20 : DCC_F21_F28;
+        int data = (t.fns >> (fn <= 20 ? 13 : 21)) & 0xFF;
+        if (t.address < 128) {
+            transmit(packet.immediate(IMM_REPS, t.address, instruction, data), false);
+        } else {
+            // long address
+            transmit(packet.immediate(IMM_REPS, 0xC0 | (t.address >> 8), t.address & 0xFF, instruction, data), false);
+        }
+    }
+
+    static int wireOrder(int fns) {
+        return ((fns & 1) << 12)
+                | (((fns >> 1) & 0xF) << 8)
+                | (((fns >> 5) & 0xF) << 4)
+                | ((fns >> 9) & 0xF);
+    }
 
     private void throttleChanged(Throttle t) {
-        throttleChanged.trigger(t);
-        try {
-            // send S ("SLOT") cmd
-            StringBuilder sb = new StringBuilder();
-            sb.append("S").append(t.slot).append(" ").append(t.address).append(" ").append(t.speed)
-                    .append(" ").append(t.direction ? "1" : "0").append(" ");
-            for (int i=0; i< FUNCTIONS; ++i) sb.append(t.f[functionBitReorder[i]] ? "1" : "0");
-            onMsg(sb.toString());
-            sb.append("\n");
-            serial.write(sb.toString());
-        } catch (IOException e) {
-            onMsg(IO_ERROR);
+        throttleChanged(t, true);
+    }
+
+    private void throttleChanged(Throttle t, boolean resend) {
+        if (t.hasError() || t.released) return;
+        if (t.slot == SlotAllocator.NONE && resend && !load(t, System.nanoTime())) {
+            // no free or idle slot, a parked loco can't move, the rest waits for its turn
+            if (t.speed > 0 || t.target > 0) {
+                onMsg(NO_SLOTS + " for loco " + t.address);
+                // all of it, or momentum ramps it right back up
+                t.speed = 0;
+                t.target = 0;
+                t.position = 0;
+            }
         }
+        if (t.slot != SlotAllocator.NONE) allocator.touch(t.slot, t.speed == 0);
+        publish(t);
+        throttleChanged.trigger(t);
+        // nothing the sketch knows about changed (F13 and up), or not in a slot, nothing to send
+        if (!resend || t.slot == SlotAllocator.NONE) return;
+        // coalesced with earlier pending updates of this slot
+        writer.updateSlot(t.slot, slotCommand(t.slot, t.address, profile(t).output(t.speed), t.direction, t.fns));
+    }
+
+    // S ("SLOT") cmd, or the compact U frame, in a reused buffer: valid until the next call
+    private CharSequence slotCommand(int slot, int address, int speed, boolean direction, int functions) {
+        int fns = wireOrder(functions);
+        if (compactSlots) return frame.encode(slot, address, speed, direction, fns);
+        StringBuilder sb = slotCommand;
+        sb.setLength(0);
+        sb.append("S").append(slot).append(" ").append(address).append(" ").append(speed)
+                .append(" ").append(direction ? "1" : "0").append(" ");
+        for (int i=FIRMWARE_FUNCTIONS-1; i>=0; --i) sb.append(((fns >> i) & 1) != 0 ? '1' : '0');
+        return sb;
     }
 
+    // use the compact "U" slot frame instead of the "S" command, needs a sketch that knows about it
+    public void setCompactSlots(boolean compactSlots) { this.compactSlots = compactSlots; }
+
     public class Throttle {
 
-        // a single trottle
-        public final int slot; // slot
+        // a single trottle, owned by the model thread, other threads use state()
         public final int address; // loco
+        private int slot = SlotAllocator.NONE; // slot in the refresh buffer, NONE if parked
+        private long parkedSince; // ns
+        private long maxRefreshGap; // ns, longest this loco waited for a slot
+        private boolean queued; // in the parked queue
 
         private int speed; // 0..126
+        private int target; // speed we are ramping to
+        private double position; // speed, with the fraction momentum got us so far
+        private boolean ramping;
         private boolean emergency;
         private boolean direction;
-        private boolean[] f = new boolean[FUNCTIONS];
+        private int fns; // F0-F28, bit i is Fi
+        private boolean released;
 
-        Throttle(int slot, int address) {
-            this.slot = slot;
+        Throttle(int address) {
             this.address = address;
             speed = 0;
             direction = true;
-            for (int i=0; i<FUNCTIONS; ++i) {
-                f[i] = false;
-            }
+            fns = 0;
         }
 
         public boolean hasError() { return address <= 0; }
 
+        // latest published state, null if released
+        public ThrottleState state() {
+            return released || hasError() ? null : states.get(address);
+        }
+
+        // slot in the refresh buffer, -1 if parked
+        public int getSlot() { return slot; }
+
+        // ms since the loco was last in a slot (and so refreshed), 0 if it is in one now
+        public long refreshGap(long now) {
+            return slot == SlotAllocator.NONE && !released && parkedSince != 0 ? (now - parkedSince) / 1_000_000 : 0;
+        }
+
+        // ms, the longest this loco had to wait for a slot so far
+        public long maxRefreshGap() { return maxRefreshGap / 1_000_000; }
+
+        // slot got reclaimed for another loco
+        public boolean isReleased() { return released; }
+
         public int getSpeed() {
             return speed;
         }
 
+        // straight to speed x, no momentum
         public void setSpeed(int x) {
+            emergency = false;
             speed = x;
             if (speed < 0) speed = 0;
             if (speed > 126) speed = 126;
+            target = speed;
+            position = speed;
             Model.this.throttleChanged(this);
         }
 
+        public int getTargetSpeed() {
+            return target;
+        }
+
+        // speed x with the momentum of the loco's profile, straight there if it has none
+        public void setTargetSpeed(int x) {
+            if (hasError() || released) return;
+            x = Math.max(0, Math.min(126, x));
+            if (!profile(this).hasMomentum()) {
+                setSpeed(x);
+                return;
+            }
+            emergency = false;
+            target = x;
+            if (!ramping && target != speed) {
+                ramping = true;
+                Model.this.ramping.add(this);
+            }
+        }
+
+        public void emergencyStop() {
+            if (hasError() || released) return;
+            speed = 0;
+            target = 0;
+            position = 0;
+            emergency = true;
+            if (slot == SlotAllocator.NONE) {
+                // parked, so not moving anyway
+                publish(this);
+                throttleChanged.trigger(this);
+                return;
+            }
+            allocator.touch(slot, true);
+            // N ("Notfall") cmd, ahead of anything else, and a pending slot update must not undo it
+            writer.cancelSlot(slot);
+            submit(CommandWriter.URGENT, "N" + slot + " " + address);
+            publish(this);
+            throttleChanged.trigger(this);
+        }
+
+        public boolean isEmergency() { return emergency; }
+
         public boolean getDirection() {
             return direction;
         }
@@ -180,12 +558,20 @@ public class Model {
         }
 
         public void toggleFunction(int i) {
-            f[i] = !f[i];
-            Model.this.throttleChanged(this);
+            if (i < 0 || i >= FUNCTIONS) return;
+            int changed = 1 << i;
+            fns ^= changed;
+            Model.this.throttleChanged(this, (changed & FIRMWARE_GROUPS) != 0);
+            if (i >= FIRMWARE_FUNCTIONS) sendExtendedFunctions(this, i);
         }
 
         public boolean getFunction(int i) {
-            return f[i];
+            return i >= 0 && i < FUNCTIONS && ((fns >> i) & 1) != 0;
+        }
+
+        // all functions as a bit mask, bit i is Fi
+        public int getFunctions() {
+            return fns;
         }
 
         @Override
@@ -203,8 +589,10 @@ public class Model {
                 sb.append(",emergency");
             }
             for (int i=0; i<FUNCTIONS; ++i) {
+                // F0-F12 always, the higher ones only when on
+                if (i >= FIRMWARE_FUNCTIONS && !getFunction(i)) continue;
                 sb.append(",F").append(i);
-                if (f[i]) {
+                if (getFunction(i)) {
                     sb.append("-1");
                 } else {
                     sb.append("-0");
@@ -214,6 +602,6 @@ public class Model {
         }
     }
 
-    private final Throttle errorThrottle = new Throttle(0, 0);
+    private final Throttle errorThrottle = new Throttle(0);
 
 }
@@ -0,0 +1,142 @@
+package net.fijma.serial.model;
+
+import net.fijma.serial.Loconet;
+
+public class PacketBuilder {
+
+    // Builds loconet packets for the "L" command, one method per opcode, into a buffer that is reused for every
+    // packet. The sketch computes the checksum itself and takes at most MAX_LOCONET_PACKET-1 (15) bytes without it,
+    // so opcodes with longer packets (OPC_RD_SL_DATA_EXT, OPC_PEER_XFR) can't be sent through it.
+    // Not thread safe, one per thread (the model has one for the model thread).
+
+    public static final int MAX_LENGTH = 15; // without checksum, see MAX_LOCONET_PACKET in Config.h
+
+    private final int[] bs = new int[MAX_LENGTH];
+    private int length;
+    private final StringBuilder sb = new StringBuilder(2 + 3 * MAX_LENGTH);
+
+    public int length() { return length; }
+
+    public int get(int i) { return bs[i]; }
+
+    // checksum as loconet will see it
+    public int checksum() {
+        int chk = 0xFF;
+        for (int i=0; i<length; ++i) chk ^= bs[i];
+        return chk;
+    }
+
+    // "L" command for the sketch
+    public String command() {
+        sb.setLength(0);
+        sb.append('L');
+        for (int i=0; i<length; ++i) {
+            sb.append(' ').append(Character.toUpperCase(Character.forDigit((bs[i] >> 4) & 0xF, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(bs[i] & 0xF, 16)));
+        }
+        return sb.toString();
+    }
+
+    // new packet of length bytes (without checksum), data bytes zero
+    private PacketBuilder start(int opcode, int length) {
+        if (length > MAX_LENGTH) throw new IllegalArgumentException("Packet too long for the sketch: " + length);
+        bs[0] = opcode;
+        for (int i=1; i<length; ++i) bs[i] = 0;
+        this.length = length;
+        return this;
+    }
+
+    private PacketBuilder put(int i, int data) {
+        if (data < 0 || data > 0x7F) throw new IllegalArgumentException("Invalid data byte " + data + " for " + Loconet.opcodeName(bs[0]));
+        bs[i] = data;
+        return this;
+    }
+
+    private PacketBuilder op(int opcode) {
+        return start(opcode, 1);
+    }
+
+    private PacketBuilder op(int opcode, int a, int b) {
+        return start(opcode, 3).put(1, a).put(2, b);
+    }
+
+    private PacketBuilder slotData(int opcode, int slot, int stat, int address, int speed, int dirf, int trk, int ss2, int snd, int id1, int id2) {
+        return start(opcode, 13).put(1, 0x0E).put(2, slot).put(3, stat).put(4, lo(address)).put(5, speed).put(6, dirf)
+                .put(7, trk).put(8, ss2).put(9, hi(address)).put(10, snd).put(11, id1).put(12, id2);
+    }
+
+    private static int lo(int address) { return address & 0x7F; }
+    private static int hi(int address) { return (address >> 7) & 0x7F; }
+
+    // 2 bytes
+
+    public PacketBuilder idle() { return op(Loconet.OPC_IDLE); }
+    public PacketBuilder powerOn() { return op(Loconet.OPC_GPON); }
+    public PacketBuilder powerOff() { return op(Loconet.OPC_GPOFF); }
+    public PacketBuilder busy() { return op(Loconet.OPC_BUSY); }
+
+    // 4 bytes
+
+    public PacketBuilder locoSpeed(int slot, int speed) { return op(Loconet.OPC_LOCO_SPD, slot, speed); }
+    public PacketBuilder locoDirf(int slot, int dirf) { return op(Loconet.OPC_LOCO_DIF, slot, dirf); }
+    public PacketBuilder locoSnd(int slot, int snd) { return op(Loconet.OPC_LOCO_SND, slot, snd); }
+    public PacketBuilder locoAddress(int address) { return op(Loconet.OPC_LOCO_ADR, hi(address), lo(address)); }
+    public PacketBuilder locoAddressExt(int address) { return op(Loconet.OPC_LOCO_ADR_EXT, hi(address), lo(address)); }
+    public PacketBuilder switchState(int address) { return op(Loconet.OPC_SW_STATE, lo(address), (address >> 7) & 0x0F); }
+    public PacketBuilder requestSlot(int slot) { return op(Loconet.OPC_RQ_SL_DATA, slot, 0); }
+    public PacketBuilder moveSlots(int src, int dst) { return op(Loconet.OPC_MOVE_SLOTS, src, dst); }
+    public PacketBuilder slotStat1(int slot, int stat1) { return op(Loconet.OPC_SLOT_STAT1, slot, stat1); }
+    public PacketBuilder longAck(int opcode, int ack) { return op(Loconet.OPC_LONG_ACK, opcode & 0x7F, ack); }
+
+    // sensor address 0..4095, the lowest bit goes in the I bit
+    public PacketBuilder inputReport(int address, boolean high) {
+        return op(Loconet.OPC_INPUT_REP, (address >> 1) & 0x7F,
+                0x40 | ((address >> 8) & 0x0F) | ((address & 1) << 5) | (high ? 0x10 : 0));
+    }
+
+    // switch address 0..2047, direction true is closed
+    public PacketBuilder switchRequest(int address, boolean direction, boolean on) {
+        return op(Loconet.OPC_REQ_SWITCH, lo(address), ((address >> 7) & 0x0F) | (direction ? 0x20 : 0) | (on ? 0x10 : 0));
+    }
+
+    // variable length
+
+    public PacketBuilder readSlot(int slot, int stat, int address, int speed, int dirf, int trk, int ss2, int snd, int id1, int id2) {
+        return slotData(Loconet.OPC_RD_SL_DATA, slot, stat, address, speed, dirf, trk, ss2, snd, id1, id2);
+    }
+
+    public PacketBuilder writeSlot(int slot, int stat, int address, int speed, int dirf, int trk, int ss2, int snd, int id1, int id2) {
+        return slotData(Loconet.OPC_WR_SL_DATA, slot, stat, address, speed, dirf, trk, ss2, snd, id1, id2);
+    }
+
+    // raw dcc packet (without its error byte, 2 to 5 bytes) to be put on the track reps times (0..7)
+
+    public PacketBuilder immediate(int reps, int dcc0, int dcc1) {
+        return immediate(reps, 2).dcc(0, dcc0).dcc(1, dcc1);
+    }
+
+    public PacketBuilder immediate(int reps, int dcc0, int dcc1, int dcc2) {
+        return immediate(reps, 3).dcc(0, dcc0).dcc(1, dcc1).dcc(2, dcc2);
+    }
+
+    public PacketBuilder immediate(int reps, int dcc0, int dcc1, int dcc2, int dcc3) {
+        return immediate(reps, 4).dcc(0, dcc0).dcc(1, dcc1).dcc(2, dcc2).dcc(3, dcc3);
+    }
+
+    public PacketBuilder immediate(int reps, int dcc0, int dcc1, int dcc2, int dcc3, int dcc4) {
+        return immediate(reps, 5).dcc(0, dcc0).dcc(1, dcc1).dcc(2, dcc2).dcc(3, dcc3).dcc(4, dcc4);
+    }
+
+    // ED 0B 7F REPS DHI IM1..IM5, 11 bytes with the checksum
+    private PacketBuilder immediate(int reps, int n) {
+        return start(Loconet.OPC_IMM_PACKET, 10).put(1, 0x0B).put(2, 0x7F).put(3, (n << 4) | (reps & 0x07));
+    }
+
+    // i-th dcc byte, its high bit travels in DHI
+    private PacketBuilder dcc(int i, int b) {
+        if (b < 0 || b > 0xFF) throw new IllegalArgumentException("Invalid dcc byte " + b);
+        bs[4] |= ((b >> 7) & 1) << i;
+        bs[5 + i] = b & 0x7F;
+        return this;
+    }
+}
@@ -0,0 +1,10 @@
+package net.fijma.serial.model;
+
+import java.io.IOException;
+
+public interface Port {
+
+    // Where commands for the controller go: normally the serial module (serial::write), but anything that takes
+    // lines will do, like a simulated controller or a benchmark.
+    void write(String s) throws IOException;
+}
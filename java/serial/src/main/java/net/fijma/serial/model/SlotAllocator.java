@@ -0,0 +1,76 @@
+package net.fijma.serial.model;
+
+class SlotAllocator {
+
+    // Hands out the refresh buffer slots of the controller. All operations are O(1), independent of the number of
+    // slots: a stack of free slots and a least-recently-used list of idle slots (loco at speed zero) that can be
+    // reclaimed when we run out of free ones. Which throttle is in which slot is up to the model.
+
+    static final int NONE = -1;
+    static final int MAX_ADDRESS = 9999; // see MAX_DCC_ADDRESS in Config.h
+
+    private final boolean[] used;
+
+    private final int[] free; // stack of free slots
+    private int nfree;
+
+    // doubly linked LRU list of idle slots, oldest at head
+    private final int[] prev;
+    private final int[] next;
+    private final boolean[] idle;
+    private int head = NONE;
+    private int tail = NONE;
+    private int nidle;
+
+    SlotAllocator(int slots) {
+        used = new boolean[slots];
+        free = new int[slots];
+        prev = new int[slots];
+        next = new int[slots];
+        idle = new boolean[slots];
+        // hand out lowest slots first
+        for (int i=0; i<slots; ++i) free[i] = slots - 1 - i;
+        nfree = slots;
+    }
+
+    // slots allocate() can hand out right now: free plus idle ones
+    int available() { return nfree + nidle; }
+
+    // a free slot, else the least recently used idle one (the caller evicts its throttle). NONE if all are busy.
+    int allocate() {
+        if (nfree > 0) return free[--nfree];
+        return head;
+    }
+
+    void assign(int slot) {
+        unlink(slot);
+        used[slot] = true;
+    }
+
+    void release(int slot) {
+        if (!used[slot]) return;
+        unlink(slot);
+        used[slot] = false;
+        free[nfree++] = slot;
+    }
+
+    // mark a slot as used, idle slots move to the tail of the LRU list, busy slots are never reclaimed
+    void touch(int slot, boolean isIdle) {
+        unlink(slot);
+        if (!isIdle) return;
+        idle[slot] = true;
+        ++nidle;
+        prev[slot] = tail;
+        next[slot] = NONE;
+        if (tail != NONE) next[tail] = slot; else head = slot;
+        tail = slot;
+    }
+
+    private void unlink(int slot) {
+        if (!idle[slot]) return;
+        idle[slot] = false;
+        --nidle;
+        if (prev[slot] != NONE) next[prev[slot]] = next[slot]; else head = next[slot];
+        if (next[slot] != NONE) prev[next[slot]] = prev[slot]; else tail = prev[slot];
+    }
+}
@@ -0,0 +1,58 @@
+package net.fijma.serial.model;
+
+public class SlotFrame implements CharSequence {
+
+    // Compact slot update ("U" command), fixed width hex instead of the decimal, space separated "S" command:
+    //   U <slot> <address> <speed|direction> <functions> <checksum>
+    //   -example: U0104D2FE1000C6 (slot 1, loco 1234, speed 126 forward, FL on)
+    //   -all fields are hex without separators: slot (1 byte), address (2 bytes), speed 0..126 with the direction
+    //    in the high bit (1 byte), the 13 function bits in wire order FL-F4-F3-F2-F1-F8-F7-F6-F5-F12-F11-F10-F9
+    //    (2 bytes), and a checksum: the inverted XOR of the six bytes before it, like LocoNet.
+    // 15 characters against about 30 for the "S" command, and no decimal formatting to do on either side.
+    // Encodes into a buffer that is reused for every frame, read it (SlotWriter copies it) before the next encode.
+    // Not thread safe, the model has one for the model thread.
+
+    public static final int LENGTH = 15;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final char[] cs = new char[LENGTH];
+
+    public SlotFrame encode(int slot, int address, int speed, boolean direction, int fns) {
+        cs[0] = 'U';
+        int spd = (speed & 0x7F) | (direction ? 0x80 : 0);
+        int checksum = 0xFF;
+        int i = 1;
+        i = hex(cs, i, slot);
+        checksum ^= slot & 0xFF;
+        i = hex(cs, i, address >> 8);
+        checksum ^= (address >> 8) & 0xFF;
+        i = hex(cs, i, address);
+        checksum ^= address & 0xFF;
+        i = hex(cs, i, spd);
+        checksum ^= spd;
+        i = hex(cs, i, fns >> 8);
+        checksum ^= (fns >> 8) & 0xFF;
+        i = hex(cs, i, fns);
+        checksum ^= fns & 0xFF;
+        hex(cs, i, checksum);
+        return this;
+    }
+
+    @Override
+    public int length() { return LENGTH; }
+
+    @Override
+    public char charAt(int index) { return cs[index]; }
+
+    @Override
+    public CharSequence subSequence(int start, int end) { return new String(cs, start, end - start); }
+
+    @Override
+    public String toString() { return new String(cs); }
+
+    private static int hex(char[] cs, int i, int b) {
+        cs[i] = HEX[(b >> 4) & 0xF];
+        cs[i + 1] = HEX[b & 0xF];
+        return i + 2;
+    }
+}
@@ -0,0 +1,58 @@
+package net.fijma.serial.model;
+
+import java.util.concurrent.TimeUnit;
+
+public class SlotWriter {
+
+    // Coalesces slot ("S") commands: only the latest command per slot is kept (last writer wins), and pending commands
+    // are handed out together, at most once per interval. Holding a speed key thus sends the current state instead of
+    // every intermediate step. An interval of zero hands out every update as soon as it is asked for.
+    // Updates are copied into a buffer per slot, only the commands actually handed out become strings.
+    private final long intervalNanos;
+    private final StringBuilder[] pending;
+    private final boolean[] has;
+    private int npending = 0;
+    private long lastTaken;
+
+    public SlotWriter(int slots, long intervalMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.pending = new StringBuilder[slots];
+        this.has = new boolean[slots];
+        for (int i=0; i<slots; ++i) pending[i] = new StringBuilder(32);
+        this.lastTaken = System.nanoTime() - intervalNanos;
+    }
+
+    public synchronized void update(int slot, CharSequence cmd) {
+        if (!has[slot]) npending++;
+        has[slot] = true;
+        pending[slot].setLength(0);
+        pending[slot].append(cmd);
+    }
+
+    // drop a pending update, e.g. when an emergency stop overtakes it
+    public synchronized void cancel(int slot) {
+        if (has[slot]) npending--;
+        has[slot] = false;
+    }
+
+    // nanos until pending commands may be taken, Long.MAX_VALUE if there are none
+    public synchronized long nanosUntilDue(long now) {
+        if (npending == 0) return Long.MAX_VALUE;
+        return Math.max(0, lastTaken + intervalNanos - now);
+    }
+
+    // pending commands in slot order, or null if there are none or the interval has not passed yet
+    public synchronized String[] takeDue(long now) {
+        if (nanosUntilDue(now) > 0) return null;
+        String[] cmds = new String[npending];
+        int n = 0;
+        for (int i=0; i<pending.length; ++i) {
+            if (!has[i]) continue;
+            cmds[n++] = pending[i].toString();
+            has[i] = false;
+        }
+        npending = 0;
+        lastTaken = now;
+        return cmds;
+    }
+}
@@ -0,0 +1,64 @@
+package net.fijma.serial.model;
+
+import java.util.Arrays;
+
+public final class SpeedProfile {
+
+    // How a loco gets to the speed asked for: acceleration and deceleration in speed steps per second (0 is
+    // instantly, no momentum), and a speed table mapping the throttle's 126 steps onto the steps sent to the
+    // decoder, for locos that crawl or race at the same step.
+
+    public static final int STEPS = 126;
+    public static final SpeedProfile NONE = new SpeedProfile(0, 0, null);
+
+    final double accel; // steps per second
+    final double decel;
+    private final int[] table; // speed -> decoder speed, null if the same
+
+    public SpeedProfile(double accel, double decel, int[] table) {
+        if (accel < 0 || decel < 0) throw new IllegalArgumentException("Negative momentum");
+        if (table != null) {
+            if (table.length != STEPS + 1 || table[0] != 0) throw new IllegalArgumentException("Speed table needs " + (STEPS + 1) + " entries, starting at 0");
+            for (int i=1; i<table.length; ++i) {
+                if (table[i] < 1 || table[i] > STEPS) throw new IllegalArgumentException("Invalid speed " + table[i] + " at " + i);
+            }
+            table = table.clone();
+        }
+        this.accel = accel;
+        this.decel = decel;
+        this.table = table;
+    }
+
+    // ms from standstill to full speed and back, 0 for no momentum
+    public static SpeedProfile momentum(long accelMs, long decelMs) {
+        return new SpeedProfile(rate(accelMs), rate(decelMs), null);
+    }
+
+    private static double rate(long ms) {
+        return ms <= 0 ? 0 : STEPS * 1000.0 / ms;
+    }
+
+    // same momentum, speed steps 1..126 spread over min..max along a curve (1 is linear, > 1 finer at the low end)
+    public SpeedProfile withCurve(int min, int max, double exponent) {
+        if (min < 1 || max > STEPS || min > max || exponent <= 0) throw new IllegalArgumentException("Invalid speed curve");
+        int[] t = new int[STEPS + 1];
+        for (int i=1; i<=STEPS; ++i) {
+            t[i] = (int) Math.round(min + (max - min) * Math.pow((i - 1) / (double) (STEPS - 1), exponent));
+        }
+        return new SpeedProfile(accel, decel, t);
+    }
+
+    public boolean hasMomentum() {
+        return accel > 0 || decel > 0;
+    }
+
+    // decoder speed for throttle speed
+    public int output(int speed) {
+        return table == null ? speed : table[speed];
+    }
+
+    @Override
+    public String toString() {
+        return "accel:" + accel + ",decel:" + decel + (table == null ? "" : ",table:" + Arrays.toString(table));
+    }
+}
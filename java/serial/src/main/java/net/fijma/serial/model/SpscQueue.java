@@ -0,0 +1,51 @@
+package net.fijma.serial.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class SpscQueue<E> {
+
+    // Bounded lock-free queue for exactly one producer and one consumer thread, capacity rounded up to a power
+    // of 2. Each side only writes its own counter, so there is no CAS, just ordered stores.
+
+    private final AtomicReferenceArray<E> elements;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next to poll, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next to offer, written by the producer
+    private long headCache; // producer's idea of head, saves reading the consumer's counter on every offer
+
+    public SpscQueue(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        elements = new AtomicReferenceArray<>(n);
+        mask = n - 1;
+    }
+
+    public int capacity() { return mask + 1; }
+
+    // producer only, false if full
+    public boolean offer(E e) {
+        long t = tail.get();
+        if (t - headCache > mask) {
+            headCache = head.get();
+            if (t - headCache > mask) return false;
+        }
+        elements.lazySet((int) t & mask, e);
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // consumer only, null if empty
+    public E poll() {
+        long h = head.get();
+        if (h == tail.get()) return null;
+        int i = (int) h & mask;
+        E e = elements.get(i);
+        elements.lazySet(i, null);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+}
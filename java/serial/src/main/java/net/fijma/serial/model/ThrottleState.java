@@ -0,0 +1,45 @@
+package net.fijma.serial.model;
+
+public final class ThrottleState {
+
+    // Immutable copy of a throttle, published by the model on every change. Safe to hand to any thread: automation,
+    // logging, a web view, without locking and without racing the model thread.
+
+    public final int slot; // -1 if parked, not in the refresh buffer
+    public final int address;
+    public final int speed; // 0..126
+    public final boolean direction; // true is forward
+    public final boolean emergency;
+    public final int functions; // F0-F28, bit i is Fi
+    public final long parkedSince; // System.nanoTime() the loco lost its slot, 0 if in one
+    public final long maxRefreshGap; // ms, longest the loco waited for a slot so far
+    public final long version; // increases with every change published by the model
+
+    ThrottleState(int slot, int address, int speed, boolean direction, boolean emergency, int functions,
+                  long parkedSince, long maxRefreshGap, long version) {
+        this.slot = slot;
+        this.address = address;
+        this.speed = speed;
+        this.direction = direction;
+        this.emergency = emergency;
+        this.functions = functions;
+        this.parkedSince = parkedSince;
+        this.maxRefreshGap = maxRefreshGap;
+        this.version = version;
+    }
+
+    public boolean getFunction(int i) {
+        return i >= 0 && i < Model.FUNCTIONS && ((functions >> i) & 1) != 0;
+    }
+
+    // ms since the loco was last refreshed, as of this state, 0 if it is in a slot
+    public long refreshGap(long now) {
+        return parkedSince == 0 ? 0 : (now - parkedSince) / 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        return "slot:" + slot + ",loco:" + address + ",speed:" + speed + ",direction:" + (direction ? "forward" : "backward")
+                + (emergency ? ",emergency" : "") + ",fns:0x" + Integer.toHexString(functions) + ",version:" + version;
+    }
+}
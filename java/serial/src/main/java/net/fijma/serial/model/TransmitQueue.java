@@ -0,0 +1,64 @@
+package net.fijma.serial.model;
+
+import java.util.ArrayDeque;
+
+class TransmitQueue {
+
+    // Paces "L" commands: the next one only goes out once the sketch confirmed the previous one with
+    // "OK #bytes=...", so a burst of packets never overruns its 64 byte serial input buffer. If the confirmation
+    // does not come (lost line, reset), we move on after a timeout. Urgent packets (replies to throttles) go
+    // ahead of the others. Model thread only.
+
+    static final long DEFAULT_ACK_TIMEOUT = 100_000_000; // ns
+
+    private final ArrayDeque<String> urgent = new ArrayDeque<>();
+    private final ArrayDeque<String> normal = new ArrayDeque<>();
+    private final int capacity;
+    private final long ackTimeout;
+    private boolean inFlight;
+    private boolean inFlightUrgent;
+    private long sentAt;
+    private long timeouts;
+
+    TransmitQueue(int capacity, long ackTimeout) {
+        this.capacity = capacity;
+        this.ackTimeout = ackTimeout;
+    }
+
+    boolean offer(String cmd, boolean isUrgent) {
+        ArrayDeque<String> q = isUrgent ? urgent : normal;
+        if (q.size() >= capacity) return false;
+        q.addLast(cmd);
+        return true;
+    }
+
+    // next command to send now, null if we have to wait for an ack or there is nothing to send
+    String next(long now) {
+        if (inFlight) {
+            if (now - sentAt < ackTimeout) return null;
+            ++timeouts;
+        }
+        inFlightUrgent = !urgent.isEmpty();
+        String cmd = inFlightUrgent ? urgent.pollFirst() : normal.pollFirst();
+        inFlight = cmd != null;
+        sentAt = now;
+        return cmd;
+    }
+
+    // whether the command handed out by next() was an urgent one
+    boolean wasUrgent() { return inFlightUrgent; }
+
+    // the command handed out by next() could not be written (writer lanes full): first in line again, next tick
+    void rejected(String cmd) {
+        inFlight = false;
+        (inFlightUrgent ? urgent : normal).addFirst(cmd);
+    }
+
+    void acked() {
+        inFlight = false;
+    }
+
+    int size() { return urgent.size() + normal.size(); }
+
+    long timeouts() { return timeouts; }
+}
@@ -0,0 +1,303 @@
+package net.fijma.serial.server;
+
+import net.fijma.serial.model.Model;
+import net.fijma.serial.model.ThrottleState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+public class ThrottleServer implements Closeable {
+
+    // TCP throttle server, so more operators than the one at the keyboard can drive locos. A single selector thread
+    // serves all clients, an idle client costs a buffer, not a thread. Line protocol, one command per line:
+    //   A <loco>          acquire a throttle, answered with a T line, after that its changes are pushed
+    //   S <loco> <speed>  set speed (0..126), with the loco's momentum
+    //   D <loco>          switch direction
+    //   F <loco> <fn>     toggle function
+    //   X <loco>          emergency stop
+    //   L <loco>          leave, no more updates for this loco. The last client to leave releases (and stops) it
+    //   P 0|1             power off/on
+    // Pushed to clients:
+    //   T <loco> <speed> <direction 1|0> <emergency 1|0> <functions, hex>
+    //   R <loco>          throttle is gone (slot reclaimed)
+    //   P 0|1             power changed, to every client
+    //   ERR <reason>
+    // The model is only touched on the model thread (through the executor), clients only on the selector thread.
+
+    private static final int MAX_LINE = 256;
+    private static final int MAX_PENDING = 256; // output buffers per client before we give up on it
+
+    private final Model model;
+    private final Executor modelThread;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Client> clients = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>(); // for the selector thread
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private static final class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(512);
+        final StringBuilder line = new StringBuilder();
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        final BitSet throttles = new BitSet(); // acquired locos
+
+        Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    public ThrottleServer(Model model, Executor modelThread, int port) throws IOException {
+        this.model = model;
+        this.modelThread = modelThread;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        // events arrive on the model thread, turn them into lines right there, send them from the selector thread
+        model.throttleChanged.attach(t -> {
+            if (t.hasError()) return;
+            int address = t.address;
+            ThrottleState s = t.state();
+            String line = s == null ? "R " + address : format(s);
+            later(() -> {
+                for (Client c : new ArrayList<>(clients)) {
+                    if (!c.throttles.get(address)) continue;
+                    if (s == null) c.throttles.clear(address);
+                    send(c, line);
+                }
+            });
+        });
+        model.powerChanged.attach(on -> {
+            String line = "P " + (on ? 1 : 0);
+            later(() -> {
+                for (Client c : new ArrayList<>(clients)) send(c, line);
+            });
+        });
+
+        thread = new Thread(this::run, "throttle-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    public int clients() {
+        return clients.size();
+    }
+
+    static String format(ThrottleState s) {
+        return "T " + s.address + " " + s.speed + " " + (s.direction ? 1 : 0) + " " + (s.emergency ? 1 : 0)
+                + " " + Integer.toHexString(s.functions);
+    }
+
+    // run on the selector thread
+    private void later(Runnable r) {
+        pending.add(r);
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Runnable r;
+                while ((r = pending.poll()) != null) r.run();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client c = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) read(c);
+                        if (key.isValid() && key.isWritable()) write(c);
+                    } catch (IOException e) {
+                        drop(c);
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                // keep serving the others
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+        Client c = new Client(ch, key);
+        key.attach(c);
+        clients.add(c);
+    }
+
+    private void drop(Client c) {
+        clients.remove(c);
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            // gone anyway
+        }
+    }
+
+    private void read(Client c) throws IOException {
+        int n = c.channel.read(c.in);
+        if (n < 0) {
+            drop(c);
+            return;
+        }
+        c.in.flip();
+        while (c.in.hasRemaining()) {
+            char ch = (char) (c.in.get() & 0xFF);
+            if (ch == '\n') {
+                String line = c.line.toString().trim();
+                c.line.setLength(0);
+                if (!line.isEmpty()) handle(c, line);
+            } else if (c.line.length() < MAX_LINE) {
+                c.line.append(ch);
+            }
+        }
+        c.in.clear();
+    }
+
+    private void send(Client c, String line) {
+        if (!c.channel.isOpen()) return;
+        if (c.out.size() >= MAX_PENDING) {
+            // not reading what we send, let it go
+            drop(c);
+            return;
+        }
+        c.out.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII)));
+        try {
+            write(c);
+        } catch (IOException e) {
+            drop(c);
+        }
+    }
+
+    private void write(Client c) throws IOException {
+        while (!c.out.isEmpty()) {
+            ByteBuffer b = c.out.peek();
+            c.channel.write(b);
+            if (b.hasRemaining()) break;
+            c.out.poll();
+        }
+        c.key.interestOps(c.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void handle(Client c, String line) {
+        String[] ws = line.split("\\s+");
+        try {
+            int loco = ws.length > 1 ? Integer.parseInt(ws[1]) : -1;
+            switch (ws[0]) {
+                case "A":
+                    modelThread.execute(() -> {
+                        Model.Throttle t = model.getThrottleFor(loco);
+                        ThrottleState s = t.state();
+                        later(() -> {
+                            if (s == null) {
+                                send(c, "ERR no throttle for " + loco);
+                                return;
+                            }
+                            c.throttles.set(loco);
+                            send(c, format(s));
+                        });
+                    });
+                    return;
+                case "P":
+                    modelThread.execute(() -> model.setPower(loco != 0));
+                    return;
+                case "L":
+                    if (loco < 0 || !c.throttles.get(loco)) return;
+                    c.throttles.clear(loco);
+                    for (Client other : clients) if (other.throttles.get(loco)) return;
+                    modelThread.execute(() -> {
+                        Model.Throttle t = model.findThrottle(loco);
+                        if (t != null) model.releaseThrottle(t);
+                    });
+                    return;
+                default:
+                    break;
+            }
+            if (loco < 0 || !c.throttles.get(loco)) {
+                send(c, "ERR not acquired: " + line);
+                return;
+            }
+            switch (ws[0]) {
+                case "S": {
+                    int speed = Integer.parseInt(ws[2]);
+                    throttle(c, loco, t -> t.setTargetSpeed(speed));
+                    break;
+                }
+                case "D":
+                    throttle(c, loco, Model.Throttle::switchDirection);
+                    break;
+                case "F": {
+                    int fn = Integer.parseInt(ws[2]);
+                    throttle(c, loco, t -> t.toggleFunction(fn));
+                    break;
+                }
+                case "X":
+                    throttle(c, loco, Model.Throttle::emergencyStop);
+                    break;
+                default:
+                    send(c, "ERR unknown command: " + line);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            send(c, "ERR invalid command: " + line);
+        }
+    }
+
+    private interface ThrottleAction {
+        void apply(Model.Throttle t);
+    }
+
+    private void throttle(Client c, int loco, ThrottleAction action) {
+        modelThread.execute(() -> {
+            Model.Throttle t = model.findThrottle(loco);
+            if (t == null) {
+                later(() -> send(c, "ERR no throttle for " + loco));
+                return;
+            }
+            action.apply(t);
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Client c : new ArrayList<>(clients)) drop(c);
+        server.close();
+        selector.close();
+    }
+}
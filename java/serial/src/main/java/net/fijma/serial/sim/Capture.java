@@ -0,0 +1,75 @@
+package net.fijma.serial.sim;
+
+import net.fijma.serial.model.Port;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+public class Capture implements Closeable {
+
+    // Append-only log of the serial traffic, one line per record:
+    //   <microseconds since previous record> <direction> <line>
+    // direction '<' is a line from the controller, '>' a line we wrote. Replay feeds it back.
+
+    public static final char IN = '<';
+    public static final char OUT = '>';
+
+    private final Writer out;
+    private long last = System.nanoTime();
+    private boolean failed;
+
+    public Capture(Writer out) {
+        this.out = new BufferedWriter(out);
+    }
+
+    public void in(String line) {
+        record(IN, line);
+    }
+
+    // a single write may hold several commands, record them one by one
+    public void out(String s) {
+        int from = 0;
+        while (from < s.length()) {
+            int nl = s.indexOf('\n', from);
+            if (nl < 0) nl = s.length();
+            if (nl > from) record(OUT, s.substring(from, nl));
+            from = nl + 1;
+        }
+    }
+
+    // wrap the port to the controller so everything written to it ends up in the capture as well
+    public Port wrap(Port port) {
+        return s -> {
+            out(s);
+            port.write(s);
+        };
+    }
+
+    private synchronized void record(char direction, String line) {
+        if (failed) return;
+        long now = System.nanoTime();
+        try {
+            out.write(Long.toString((now - last) / 1000));
+            out.write(' ');
+            out.write(direction);
+            out.write(' ');
+            out.write(line);
+            out.write('\n');
+        } catch (IOException e) {
+            // don't take the app down for the sake of the capture
+            failed = true;
+        }
+        last = now;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
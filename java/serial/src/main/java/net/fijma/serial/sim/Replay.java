@@ -0,0 +1,54 @@
+package net.fijma.serial.sim;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.function.Consumer;
+
+public class Replay {
+
+    // Feeds the inbound lines of a capture back into whoever handles serial lines (SerialController.post), either
+    // at the pace they were recorded or as fast as possible. Our own writes in the capture are skipped, the model
+    // will write them again. Records that don't parse are skipped and counted.
+
+    private final Consumer<String> sink;
+    private final boolean realTime;
+    private long skipped;
+
+    public Replay(Consumer<String> sink, boolean realTime) {
+        this.sink = sink;
+        this.realTime = realTime;
+    }
+
+    // records that were not understood
+    public long skipped() { return skipped; }
+
+    // number of lines fed
+    public long run(Reader in) throws IOException, InterruptedException {
+        BufferedReader r = new BufferedReader(in);
+        long count = 0;
+        long due = System.nanoTime();
+        String record;
+        while ((record = r.readLine()) != null) {
+            int sp1 = record.indexOf(' ');
+            if (sp1 < 0 || record.length() < sp1 + 3) {
+                ++skipped;
+                continue;
+            }
+            try {
+                due += Long.parseLong(record.substring(0, sp1)) * 1000;
+            } catch (NumberFormatException e) {
+                ++skipped;
+                continue;
+            }
+            if (record.charAt(sp1 + 1) != Capture.IN) continue;
+            if (realTime) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            sink.accept(record.substring(sp1 + 3));
+            ++count;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,50 @@
+package net.fijma.serial.sim;
+
+import java.util.Random;
+import java.util.function.Consumer;
+
+public class SensorStorm {
+
+    // Synthetic OPC_INPUT_REP traffic, as "LN ..." lines the way the sketch prints them, for sensors 0..sensors-1
+    // going high and low at random. Way more than a real bus will ever carry, if you want.
+
+    private final Random random;
+    private final int sensors;
+    private final StringBuilder sb = new StringBuilder(16);
+
+    public SensorStorm(int sensors, long seed) {
+        if (sensors < 1 || sensors > 4096) throw new IllegalArgumentException("Invalid number of sensors " + sensors);
+        this.sensors = sensors;
+        this.random = new Random(seed);
+    }
+
+    public String next() {
+        int adr = random.nextInt(sensors);
+        int in1 = (adr >> 1) & 0x7F;
+        int in2 = ((adr >> 8) & 0x0F) | ((adr & 1) << 5) | (random.nextBoolean() ? 0x10 : 0) | 0x40;
+        int chk = 0xFF ^ 0xB2 ^ in1 ^ in2;
+        sb.setLength(0);
+        sb.append("LN b2");
+        hex(in1);
+        hex(in2);
+        hex(chk);
+        return sb.toString();
+    }
+
+    private void hex(int b) {
+        // the sketch prints without leading zero
+        sb.append(' ').append(Integer.toHexString(b));
+    }
+
+    // feed count lines, at rate lines per second or as fast as possible if rate <= 0
+    public void run(Consumer<String> sink, long count, long rate) throws InterruptedException {
+        long start = System.nanoTime();
+        for (long i=0; i<count; ++i) {
+            if (rate > 0) {
+                long wait = start + i * 1_000_000_000L / rate - System.nanoTime();
+                if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            sink.accept(next());
+        }
+    }
+}
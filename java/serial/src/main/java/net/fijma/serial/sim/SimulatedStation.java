@@ -0,0 +1,65 @@
+package net.fijma.serial.sim;
+
+import net.fijma.serial.model.Port;
+
+import java.util.function.Consumer;
+
+public class SimulatedStation implements Port {
+
+    // Stand-in for the sketch: accepts what the model writes and answers the way Com.cpp does, on the writing
+    // thread. Good enough to run the model without a controller, it does not check the slot commands in detail.
+    // The replies are the only lines posted to the SerialController then (option -sim).
+
+    private final Consumer<String> replies;
+    private volatile long commands;
+
+    public SimulatedStation(Consumer<String> replies) {
+        this.replies = replies;
+    }
+
+    public long commands() { return commands; }
+
+    @Override
+    public void write(String s) {
+        int from = 0;
+        while (from < s.length()) {
+            int nl = s.indexOf('\n', from);
+            if (nl < 0) nl = s.length();
+            if (nl > from) command(s.substring(from, nl));
+            from = nl + 1;
+        }
+    }
+
+    private void command(String cmd) {
+        ++commands;
+        switch (cmd.charAt(0)) {
+            case 'S':
+            case 'U':
+            case 'N':
+                replies.accept("OK " + cmd);
+                break;
+            case 'L': {
+                // LocoNet sees its own packet as well
+                String[] bs = cmd.substring(1).trim().split("\\s+");
+                replies.accept("OK #bytes=" + bs.length);
+                StringBuilder sb = new StringBuilder("LN");
+                int chk = 0xFF;
+                for (String b : bs) {
+                    int x = Integer.parseInt(b, 16);
+                    chk ^= x;
+                    sb.append(' ').append(Integer.toHexString(x));
+                }
+                replies.accept(sb.append(' ').append(Integer.toHexString(chk)).toString());
+                break;
+            }
+            case 'P':
+                replies.accept("OK power is on");
+                break;
+            case 'O':
+                replies.accept("OK power is off");
+                break;
+            default:
+                replies.accept("ERROR no command");
+        }
+    }
+}
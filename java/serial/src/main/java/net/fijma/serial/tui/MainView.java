@@ -1,24 +1,35 @@
 package net.fijma.serial.tui;
 
 import net.fijma.mvc.View;
+import net.fijma.serial.model.MessageLog;
 import net.fijma.serial.model.Model;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 public class MainView extends View<Model> {
 
     // aggregation combination of views
+    private final Screen screen;
     private final List<View> views;
     public final ThrottleView leftView;
     public final ThrottleView rightView;
     private int currentView;
+    private Thread renderer;
 
     public MainView(Model model) {
+        this(model, System.out);
+    }
+
+    public MainView(Model model, PrintStream out) {
         super(model);
 
-        leftView = new ThrottleView(model, 0);
-        rightView = new ThrottleView(model, 1);
+        screen = new Screen(24, 80, out);
+
+        leftView = new ThrottleView(model, screen, 0);
+        rightView = new ThrottleView(model, screen, 1);
 
         this.views = new ArrayList<>();
         views.add(leftView);
@@ -29,21 +40,42 @@ public class MainView extends View<Model> {
     }
 
     void onPowerChanged(Boolean power) {
-        setRC(2, 42);
-        if (power) { System.out.print(green() + " ON" + reset()); } else { System.out.print(red() + "OFF" +  reset()); }
+        if (power) { screen.print(2, 42, " ON", Screen.GREEN); } else { screen.print(2, 42, "OFF", Screen.RED); }
     }
 
-    void onMsg(List<String> msg) {
-        // print at most 10 messages
-        int c = Math.min(10, msg.size());
+    void onMsg(MessageLog msg) {
+        // print at most 8 messages, below the throttles
+        int c = Math.min(8, msg.size());
         for (int i=0; i<c; i++) {
-            setRC(13+i, 2);
-            String l = String.format("%-78s", msg.get(c-i-1));
-            l = l.substring(0, Math.min(l.length(), 78));
-            System.out.print(l);
+            screen.print(15+i, 2, msg.get(c-i-1), Screen.NORMAL, 78);
         }
     }
 
+    // write whatever changed since the last flush to the terminal
+    void flush() {
+        screen.flush();
+    }
+
+    // Flush on a thread of its own, at most fps times a second, so drawing to a slow terminal never holds up
+    // the threads that update the model. Views keep printing into the screen from whichever thread they run on.
+    void startRendering(int fps) {
+        long frame = 1_000_000_000L / fps;
+        renderer = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(frame);
+                screen.flush();
+            }
+        }, "render");
+        renderer.setDaemon(true);
+        renderer.start();
+    }
+
+    void stopRendering() {
+        if (renderer == null) return;
+        renderer.interrupt();
+        screen.flush();
+    }
+
     @Override
     public void draw() {
         // TODO: read this from file
@@ -72,14 +104,16 @@ public class MainView extends View<Model> {
 "|                                                                              |",
 "|                                                                              |",
 "+------------------------------------------------------------------------------+" };
+        // full redraw, the terminal may show anything
+        screen.invalidate();
         for (int i=1; i<=24; ++i){
-            setRC(i, 1);
-            System.out.print(pict[i-1]);
+            screen.print(i, 1, pict[i-1]);
         }
 
         onPowerChanged(model.power());
 
         for (View v: views) v.draw();
+        screen.flush();
     }
 
     @Override
@@ -99,6 +133,10 @@ public class MainView extends View<Model> {
         case 118:
             model.setPower(false);
             break;
+        case 73: // I, command statistics
+        case 105:
+            model.onMsg(model.commands().summary());
+            break;
         case 88: // X, quit
         case 120:
             return false;
@@ -0,0 +1,106 @@
+package net.fijma.serial.tui;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+class Screen {
+
+    // Virtual screen. Views print into a back buffer, flush() compares it with what the terminal currently shows and
+    // writes only the cells that changed, in a single write. Updates between two flushes are coalesced for free.
+    // Rows and columns are 1-based, like setRC().
+
+    static final int NORMAL = 0;
+    static final int GREEN = 1;
+    static final int RED = 2;
+    private static final String[] COLORS = { "\u001b[0m", "\u001b[32m", "\u001b[31m" };
+
+    private final int rows;
+    private final int cols;
+    private final PrintStream stream;
+
+    // back buffer (code points and colors) and what the terminal shows, -1 if unknown
+    private final int[] chars;
+    private final int[] colors;
+    private final int[] shownChars;
+    private final int[] shownColors;
+
+    private final StringBuilder out = new StringBuilder();
+    private boolean dirty; // anything printed since the last flush
+
+    Screen(int rows, int cols, PrintStream stream) {
+        this.rows = rows;
+        this.cols = cols;
+        this.stream = stream;
+        chars = new int[rows * cols];
+        colors = new int[rows * cols];
+        shownChars = new int[rows * cols];
+        shownColors = new int[rows * cols];
+        Arrays.fill(chars, ' ');
+        invalidate();
+    }
+
+    synchronized void print(int row, int col, String s) {
+        print(row, col, s, NORMAL, 0);
+    }
+
+    synchronized void print(int row, int col, String s, int color) {
+        print(row, col, s, color, 0);
+    }
+
+    // print s, padded with spaces or truncated to width (if width > 0), clipped at the right edge
+    synchronized void print(int row, int col, String s, int color, int width) {
+        if (row < 1 || row > rows) return;
+        int c = col;
+        int end = width > 0 ? Math.min(cols + 1, col + width) : cols + 1;
+        for (int i = 0; i < s.length() && c < end; ) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            put(row, c++, cp, color);
+        }
+        if (width > 0) {
+            while (c < end) put(row, c++, ' ', color);
+        }
+    }
+
+    private void put(int row, int col, int cp, int color) {
+        if (col < 1) return;
+        int i = (row - 1) * cols + col - 1;
+        chars[i] = cp;
+        colors[i] = color;
+        dirty = true;
+    }
+
+    // forget what the terminal shows, next flush writes every cell
+    synchronized void invalidate() {
+        Arrays.fill(shownChars, -1);
+        Arrays.fill(shownColors, -1);
+        dirty = true;
+    }
+
+    synchronized void flush() {
+        if (!dirty) return;
+        dirty = false;
+        out.setLength(0);
+        int cursor = -1; // cell index the terminal cursor is at, if known
+        int color = -1;
+        for (int i = 0; i < chars.length; ++i) {
+            if (chars[i] == shownChars[i] && colors[i] == shownColors[i]) continue;
+            if (i != cursor) {
+                out.append("\u001b[").append(i / cols + 1).append(';').append(i % cols + 1).append('H');
+            }
+            if (colors[i] != color) {
+                color = colors[i];
+                out.append(COLORS[color]);
+            }
+            out.appendCodePoint(chars[i]);
+            shownChars[i] = chars[i];
+            shownColors[i] = colors[i];
+            // don't rely on the cursor wrapping at the end of a line
+            cursor = (i + 1) % cols == 0 ? -1 : i + 1;
+        }
+        if (out.length() == 0) return;
+        if (color != NORMAL) out.append(COLORS[NORMAL]);
+        stream.print(out);
+        stream.flush();
+    }
+}
@@ -5,18 +5,55 @@ import net.fijma.mvc.Controller;
 
 import net.fijma.mvc.Msg;
 import net.fijma.mvc.serial.Serial;
+import net.fijma.serial.Journal;
 import net.fijma.serial.Loconet;
+import net.fijma.serial.LoconetStats;
 import net.fijma.serial.Main;
+import net.fijma.serial.SlotServer;
 import net.fijma.serial.model.Model;
+import net.fijma.serial.model.SpscQueue;
+import net.fijma.serial.sim.Capture;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.LockSupport;
 
 public class SerialController extends Controller<Main, Model, MainView> {
 
-    private Loconet ln = new Loconet(); // TODO: loconet onMsg's should run through app queue, too
+    // Staged: the app thread only hands serial lines and keys over. Decoding and all model updates happen on a
+    // single "model" thread, the views print into the screen from there, and the screen goes out to the terminal
+    // on the render thread at a capped frame rate. Commands go out on the serial-writer thread (CommandWriter).
+
+    private static final int MAX_BATCH = 256; // lines applied per batch, so keys still get a look in
+    private static final int LINES = 4096;
+    private static final int FPS = 25;
+    private static final long IDLE_PARK = 10_000_000; // ns, in case we miss a wakeup
+
+    private Loconet ln = new Loconet();
+    // lines from the app thread (or a replay), one producer only
+    private final SpscQueue<String> lines = new SpscQueue<>(LINES);
+    // key handling and anything else that touches the model, from any thread
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread owner;
+    private volatile boolean running = true;
+    private volatile boolean idle;
+
+    private Capture capture;
 
     public SerialController(Main app, Model model, MainView view) {
         super(app, model, view);
 
-        ln.decoded.attach(model::onMsg);
+        // the packet is formatted if and when the log shows it, the decoder's buffer is reused so the log copies it
+        ln.received.attach(model::onPacket);
+        ln.stats.summary.attach(model::onMsg);
+        // keep track of sensors and turnouts
+        ln.on(Loconet.OPC_INPUT_REP).attach(p -> {
+            if (p.checksumValid()) model.layout.sensor(p.address(), p.sensorHigh());
+        });
+        ln.on(Loconet.OPC_REQ_SWITCH).attach(p -> {
+            if (p.checksumValid()) model.layout.turnout(p.address(), p.switchDirection());
+        });
         // wire model -> views
         model.throttleChanged.attach(view.leftView::onUpdate);
         model.throttleChanged.attach(view.rightView::onUpdate);
@@ -28,52 +65,157 @@ public class SerialController extends Controller<Main, Model, MainView> {
         view.leftView.down.attach(this::onDown);
         view.leftView.sw.attach(this::onSwitch);
         view.leftView.fn.attach(this::onFn);
+        view.leftView.stop.attach(this::onStop);
 
         view.rightView.up.attach(this::onUp);
         view.rightView.down.attach(this::onDown);
         view.rightView.sw.attach(this::onSwitch);
         view.rightView.fn.attach(this::onFn);
+        view.rightView.stop.attach(this::onStop);
+
+        owner = new Thread(this::run, "model");
+        owner.setDaemon(true);
+    }
+
+    // Start the model and render threads, once everything is wired: listeners attached later would race with the
+    // model thread. Lines and tasks posted before are kept until then.
+    public void start() {
+        owner.start();
+        mainView.startRendering(FPS);
     }
 
+    // record everything the controller tells us
+    public void setCapture(Capture capture) { this.capture = capture; }
+
+    // act as slot master for the throttles on loconet
+    public void serveSlots(SlotServer slots) { slots.attach(ln); }
+
+    // decoder statistics, counted on the model thread
+    public LoconetStats stats() { return ln.stats; }
+
+    // keep every received packet in the journal
+    public void setJournal(Journal journal) { ln.received.attach(journal::append); }
+
     private void onDown(Model.Throttle throttle) {
-        throttle.setSpeed(throttle.getSpeed() - 1);
+        throttle.setTargetSpeed(throttle.getTargetSpeed() - 1);
     }
 
     private void onUp(Model.Throttle throttle) {
-        throttle.setSpeed(throttle.getSpeed() + 1);
+        throttle.setTargetSpeed(throttle.getTargetSpeed() + 1);
     }
 
     private void onSwitch(Model.Throttle throttle) {
         throttle.switchDirection();
     }
 
+    private void onStop(Model.Throttle throttle) {
+        throttle.emergencyStop();
+    }
+
     private void onFn(ThrottleView.FnEvent e) {
         e.throttle.toggleFunction(e.fn);
     }
 
     @Override
     protected boolean onEvent(Msg msg) {
+        boolean result = true;
         if (msg instanceof Application.KeyMsg) {
-            return mainView.key(((Application.KeyMsg) msg).key);
+            // keys change the model, so they run on the model thread as well, we wait for the verdict
+            int key = ((Application.KeyMsg) msg).key;
+            FutureTask<Boolean> task = new FutureTask<>(() -> mainView.key(key));
+            execute(task);
+            try {
+                result = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                model.onMsg("key " + key + ": " + e.getCause());
+            }
+            if (!result) close();
         } else if (msg instanceof Serial.SerialMsg) {
-            String line = ((Serial.SerialMsg) msg).line;
-            if (line.startsWith("LN")) {
-                // Loconet packet received, split and parse bytes
-                for (String s : line.split(" ")) {
-                    try {
-                        ln.pushByte(Integer.parseInt(s, 16));
-                    } catch (NumberFormatException ignored) { ; }
+            post(((Serial.SerialMsg) msg).line);
+        }
+        return result;
+    }
+
+    // a line from the controller, applied on the model thread. Only one thread posts: the app thread, or a replay.
+    public void post(String line) {
+        while (!lines.offer(line)) Thread.yield(); // model thread is behind, wait for it
+        wakeup();
+    }
+
+    // run task on the model thread
+    public void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    private void wakeup() {
+        if (idle) LockSupport.unpark(owner);
+    }
+
+    private void run() {
+        while (running) {
+            boolean busy = false;
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                busy = true;
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    model.onMsg(e.toString());
                 }
-            } else if (line.startsWith("POFF")) {
-                model.onMsg("power overload, switched off");
-                model.setPower(false);
-            } else if (line.contains("HELO")) {
-                // contains, not "startsWith", as initial message sometimes start with one or two chars of garbage
-                model.onMsg("controller initialized");
-            } else {
-                model.onMsg(line);
             }
+            if (drain() > 0) busy = true;
+            long now = System.nanoTime();
+            model.tick(now);
+            ln.stats.tick(now);
+            if (busy) continue;
+            idle = true;
+            if (tasks.isEmpty() && lines.isEmpty()) LockSupport.parkNanos(IDLE_PARK);
+            idle = false;
+        }
+    }
+
+    public void close() {
+        running = false;
+        LockSupport.unpark(owner);
+        mainView.stopRendering();
+    }
+
+    // apply what is waiting as one batch: all packets decoded and applied to the model, views told once
+    private int drain() {
+        int n = 0;
+        model.beginBatch();
+        try {
+            String line;
+            while (n < MAX_BATCH && (line = lines.poll()) != null) {
+                onLine(line);
+                ++n;
+            }
+        } finally {
+            model.endBatch();
+        }
+        return n;
+    }
+
+    // a line from the controller, straight from the serial port or from a replay, on the model thread
+    private void onLine(String line) {
+        if (capture != null) capture.in(line);
+        if (line.startsWith("LN")) {
+            // Loconet packet received, parse bytes straight from the line
+            ln.pushHex(line, 2);
+        } else if (line.startsWith("OK") || line.startsWith("E")) {
+            // reply to a command ("E no speed" and "E no direction" are errors as well)
+            model.onReply(line);
+        } else if (line.startsWith("POFF")) {
+            model.onMsg("power overload, switched off");
+            model.setPower(false);
+        } else if (line.contains("HELO")) {
+            // contains, not "startsWith", as initial message sometimes start with one or two chars of garbage
+            model.onMsg("controller initialized");
+        } else {
+            model.onMsg(line);
         }
-        return true;
     }
 }
@@ -9,6 +9,7 @@ public class ThrottleView extends View<Model> {
     final Event<Model.Throttle> up = new Event<>();
     final Event<Model.Throttle> down = new Event<>();
     final Event<Model.Throttle> sw = new Event<>();
+    final Event<Model.Throttle> stop = new Event<>();
     final Event<FnEvent> fn = new Event<>();
 
 
@@ -20,28 +21,28 @@ public class ThrottleView extends View<Model> {
             this.fn = fn;
         }
     }
+    private final Screen screen;
     private final int pos;
 
     private Model.Throttle throttle = null;
     private int address = 0;
     private int nextFunctionShift = 0;
 
-    ThrottleView(Model model, int pos) {
+    ThrottleView(Model model, Screen screen, int pos) {
         super(model);
+        this.screen = screen;
         this.pos = pos;
     }
 
-    private String colorCheck(boolean b) {
+    private void check(int row, int col, boolean b) {
         if (b) {
-            return green() +"✓" + reset();
+            screen.print(row, col, "✓", Screen.GREEN);
         } else {
-            return red() + "𐄂" + reset();
+            screen.print(row, col, "𐄂", Screen.RED);
         }
     }
-    public void draw() {
-        int baseCol = 1+pos*59;
 
-        final String[] pict = new String[] {
+    private static final String[] PICT = new String[] {
 "+---------+---------+",
 "| adr ----|  sl --  |",
 "+---------+----+----+",
@@ -52,7 +53,14 @@ public class ThrottleView extends View<Model> {
 "|F05-|F06-|F07-|F08-|",
 "+----+----+----+----+",
 "|F09-|F10-|F11-|F12-|",
-"+----+----+----+----+"          };
+"+----+----+----+----+",
+"|F13-F20  ---- ---- |",
+"|F21-F28  ---- ---- |",
+"+-------------------+"          };
+
+    public void draw() {
+        // draws into the virtual screen, only what actually changed reaches the terminal on the next flush
+        int baseCol = 1+pos*59;
 
         int addressColOffset = 6;
         int slotColOffset = 16;
@@ -60,54 +68,57 @@ public class ThrottleView extends View<Model> {
         int directionColOffset = 12;
         int flColOffset = 18;
         int[] fColOffset = new int[] { 4, 9, 14, 19};
+        int extColOffset = 10;
 
-        for (int i=1; i<= pict.length; ++i) {
-            setRC(i, baseCol);
-            System.out.print(pict[i-1]);
+        for (int i=1; i<= PICT.length; ++i) {
+            screen.print(i, baseCol, PICT[i-1]);
         }
 
         if (throttle == null || throttle.hasError()) {
             // no throttle, let user enter one
-            setRC(2,baseCol+addressColOffset);
             if (address == 0) {
-                System.out.println("   ?");
+                screen.print(2, baseCol+addressColOffset, "   ?");
             } else {
-                System.out.print(String.format("%4d", address));
+                screen.print(2, baseCol+addressColOffset, String.format("%4d", address));
             }
             if (throttle != null) {
                 // throttle has error (probably no slots available)
-                setRC(2, baseCol+slotColOffset);
-                System.out.print("EE");
+                screen.print(2, baseCol+slotColOffset, "EE");
             }
         } else {
-            setRC(2, baseCol+addressColOffset);
-            System.out.print(String.format("%4d", throttle.address));
-            setRC(2, baseCol+slotColOffset);
-            System.out.print(String.format("%2d", throttle.slot));
-
-            setRC(4, baseCol+speedColOffset);
-            System.out.print(String.format("%3d", throttle.getSpeed()));
-            setRC(4, baseCol+directionColOffset);
+            screen.print(2, baseCol+addressColOffset, String.format("%4d", throttle.address));
+            // parked locos don't have a slot of their own, they take turns
+            int slot = throttle.getSlot();
+            screen.print(2, baseCol+slotColOffset, slot < 0 ? "--" : String.format("%2d", slot));
+
+            screen.print(4, baseCol+speedColOffset, String.format("%3d", throttle.getSpeed()));
             if (throttle.getDirection()) {
-                System.out.print("\u2b06"); // upwards black arrow
+                screen.print(4, baseCol+directionColOffset, "\u2b06"); // upwards black arrow
             } else {
-                System.out.print("\u2b07"); // downwards black arrow
+                screen.print(4, baseCol+directionColOffset, "\u2b07"); // downwards black arrow
             }
-            setRC(4, baseCol+flColOffset);
-            System.out.print(colorCheck(throttle.getFunction(0)));
+            check(4, baseCol+flColOffset, throttle.getFunction(0));
 
             for (int i = 0; i < 3; i++) {
                 for (int j = 1; j <= 4; j++) {
-                    setRC(6 + (i * 2), baseCol + fColOffset[j-1]);
-                    System.out.print(colorCheck(throttle.getFunction(j + i * 4)));
+                    check(6 + (i * 2), baseCol + fColOffset[j-1], throttle.getFunction(j + i * 4));
                 }
             }
+            // F13 and up, one mark each, in groups of four
+            for (int i = 0; i < 16; i++) {
+                check(12 + i / 8, baseCol + extColOffset + (i % 8) + (i % 8) / 4, throttle.getFunction(13 + i));
+            }
         }
     }
 
     void onUpdate(Model.Throttle throttle) {
         // model notifies update
         if (throttle == this.throttle) {
+            if (throttle.isReleased()) {
+                // slot was reclaimed, start over
+                this.throttle = null;
+                address = 0;
+            }
             draw();
         }
     }
@@ -115,7 +126,6 @@ public class ThrottleView extends View<Model> {
     public boolean key(int k) {
 
         if (throttle == null || throttle.hasError()) {
-            setRC(20, 2);
             if (k>='0' && k<='9') {
                 int newAddress = 10 *address + k - '0';
                 if (newAddress >=0 && newAddress <= 9999) {
@@ -171,9 +181,29 @@ public class ThrottleView extends View<Model> {
                 case 101:
                     functionShift = 2;
                     break;
+                case 82: // R, F13-F16
+                case 114:
+                    functionShift = 3;
+                    break;
+                case 84: // T, F17-F20
+                case 116:
+                    functionShift = 4;
+                    break;
+                case 89: // Y, F21-F24
+                case 121:
+                    functionShift = 5;
+                    break;
+                case 85: // U, F25-F28
+                case 117:
+                    functionShift = 6;
+                    break;
                 case 32: // Space, toggle direction
                     sw.trigger(throttle);
                     break;
+                case 83: // S, emergency stop
+                case 115:
+                    stop.trigger(throttle);
+                    break;
                 default:
                     // intentionally left empty
                     break;
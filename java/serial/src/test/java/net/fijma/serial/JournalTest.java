@@ -0,0 +1,55 @@
+package net.fijma.serial;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    @Test
+    public void testJournal() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        Loconet ln = new Loconet();
+
+        Journal j = new Journal(dir, 4, 3);
+        ln.received.attach(j::append);
+        long from = System.currentTimeMillis();
+        ln.pushHex("LN b2 10 30 6d", 2); // sensor 33
+        ln.pushHex("LN a0 03 20 7c", 2); // speed slot 3
+        ln.pushHex("LN bf 00 51 11", 2); // loco 81
+        ln.pushHex("LN b0 0c 30 73", 2); // switch 12
+        ln.pushHex("LN bf 00 51 11", 2); // loco 81 again, second segment
+        j.sync();
+        long to = System.currentTimeMillis();
+
+        List<Journal.Entry> es = j.query(-1, 81, from, to);
+        assertEquals("address 81", 2, es.size());
+        assertEquals("packet", Loconet.OPC_LOCO_ADR, es.get(1).packet.opcode());
+        assertEquals("opcode", 1, j.query(Loconet.OPC_LOCO_SPD, -1, from, to).size());
+        assertEquals("all", 5, j.query(-1, -1, from, to).size());
+        assertEquals("none before", 0, j.query(-1, -1, 0, from - 1).size());
+        j.close();
+
+        // reopen picks up the old segments
+        j = new Journal(dir, 4, 3);
+        assertEquals("reopened", 2, j.query(-1, 81, from, to).size());
+        assertTrue("sensor 33", j.query(Loconet.OPC_INPUT_REP, 33, from, to).get(0).packet.checksumValid());
+        j.close();
+
+        // other segment size: the old segments are left alone, new ones get new numbers
+        j = new Journal(dir, 8, 3);
+        Loconet ln2 = new Loconet();
+        ln2.received.attach(j::append);
+        ln2.pushHex("LN b2 10 30 6d", 2);
+        j.sync();
+        j.close();
+        assertEquals("old segment", 4 * Journal.RECORD, new File(dir, "journal-000000.dat").length());
+        assertEquals("new segment", 8 * Journal.RECORD, new File(dir, "journal-000002.dat").length());
+
+        for (File f : dir.listFiles()) assertTrue(f.delete());
+        assertTrue(dir.delete());
+    }
+}
@@ -0,0 +1,159 @@
+package net.fijma.serial;
+
+import net.fijma.serial.model.LayoutState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoconetTest {
+
+    private static List<LoconetPacket> push(Loconet ln, int... bytes) {
+        List<LoconetPacket> result = new ArrayList<>();
+        ln.received.attach(p -> result.add(p.copy()));
+        for (int b : bytes) ln.pushByte(b);
+        return result;
+    }
+
+    @Test
+    public void testDecode() {
+        Loconet ln = new Loconet();
+        List<LoconetPacket> ps = push(ln,
+                0xa0, 0x06, 0x0d, 0x54, // OPC_LOCO_SPD
+                0x12, // garbage, discarded
+                0xe7, 0x0e, 0x06, 0x30, 0x51, 0x00, 0x00, 0x07, 0x00, 0x00, 0x00, 0x00, 0x00, 0x76);
+
+        assertEquals("packets", 2, ps.size());
+
+        LoconetPacket spd = ps.get(0);
+        assertEquals("opcode", 0xA0, spd.opcode());
+        assertEquals("slot", 6, spd.slot());
+        assertEquals("speed", 13, spd.speed());
+        assertTrue("checksum", spd.checksumValid());
+        assertEquals("text", "OPC_LOCO_SPD(SLOT=6,SPD=13) [0xA0 0x06 0x0D 0x54]", spd.toString());
+
+        LoconetPacket rd = ps.get(1);
+        assertEquals("length", 14, rd.length());
+        assertEquals("slot", 6, rd.slot());
+        assertEquals("address", 81, rd.address());
+        assertTrue("checksum", rd.checksumValid());
+    }
+
+    @Test
+    public void testInvalidChecksum() {
+        Loconet ln = new Loconet();
+        List<LoconetPacket> ps = push(ln, 0xb2, 0x10, 0x30, 0x00);
+        assertEquals("packets", 1, ps.size());
+        assertFalse("checksum", ps.get(0).checksumValid());
+        assertEquals("sensor address", 33, ps.get(0).address());
+        assertTrue("sensor level", ps.get(0).sensorHigh());
+    }
+
+    @Test
+    public void testDispatch() {
+        Loconet ln = new Loconet();
+        List<Integer> sensors = new ArrayList<>();
+        ln.on(Loconet.OPC_INPUT_REP).attach(p -> sensors.add(p.address()));
+        push(ln, 0xa0, 0x06, 0x0d, 0x54, 0xb2, 0x10, 0x30, 0x00);
+        assertEquals("only sensor reports", 1, sensors.size());
+        assertEquals("sensor address", 33, (int) sensors.get(0));
+
+        assertEquals("name", "OPC_PEER_XFR", Loconet.opcodeName(0xE5));
+        assertEquals("name", "UNKNOWN_OPCODE", Loconet.opcodeName(0xE4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDispatchNoOpcode() {
+        new Loconet().on(0x12);
+    }
+
+    @Test
+    public void testPushHex() {
+        Loconet ln = new Loconet();
+        List<LoconetPacket> ps = new ArrayList<>();
+        ln.received.attach(p -> ps.add(p.copy()));
+        ln.pushHex("LN a0 6 D 54", 0);
+        ln.pushHex("LN b2 10 zz 30 0", 2);
+        assertEquals("packets", 2, ps.size());
+        assertEquals("speed", 13, ps.get(0).speed());
+        assertTrue("checksum", ps.get(0).checksumValid());
+        assertEquals("sensor address", 33, ps.get(1).address());
+    }
+
+    @Test
+    public void testLayoutState() {
+        LayoutState layout = new LayoutState();
+        List<Integer> changes = new ArrayList<>();
+        layout.sensorChanged.attach(changes::add);
+
+        Loconet ln = new Loconet();
+        ln.on(Loconet.OPC_INPUT_REP).attach(p -> layout.sensor(p.address(), p.sensorHigh()));
+        ln.pushHex("LN b2 10 30 6d", 2); // 33 occupied
+        ln.pushHex("LN b2 10 30 6d", 2); // again, no change
+        ln.pushHex("LN b2 10 20 7d", 2); // 33 free
+
+        assertEquals("changes", Arrays.asList(33, 33), changes);
+        assertTrue("known", layout.isSensorKnown(33));
+        assertFalse("free", layout.isOccupied(33));
+
+        layout.sensor(317, true);
+        layout.sensor(320, true);
+        BitSet range = layout.sensors(316, 324);
+        assertEquals("range", "{1, 4}", range.toString());
+
+        // out of range is never known, never an exception
+        layout.sensor(-1, true);
+        layout.sensor(LayoutState.SENSORS, true);
+        assertFalse("negative", layout.isOccupied(-1));
+        assertFalse("too high", layout.isSensorKnown(LayoutState.SENSORS));
+        assertFalse("turnout", layout.isClosed(LayoutState.TURNOUTS + 5));
+        assertFalse("turnout known", layout.isTurnoutKnown(-3));
+        assertEquals("partly below", "{318, 321}", layout.sensors(-1, 400).toString());
+        layout.sensor(LayoutState.SENSORS - 1, true);
+        assertEquals("partly above", "{0}", layout.sensors(LayoutState.SENSORS - 1, LayoutState.SENSORS + 10).toString());
+        assertTrue("negative to", layout.sensors(0, -5).isEmpty());
+        assertTrue("reversed", layout.turnouts(10, 5).isEmpty());
+    }
+
+    @Test
+    public void testStats() {
+        Loconet ln = new Loconet();
+        List<String> summaries = new ArrayList<>();
+        ln.stats.summary.attach(summaries::add);
+        ln.stats.setSummaryInterval(2);
+        long s = 1_000_000_000;
+        ln.stats.tick(0);
+        push(ln,
+                0x12, 0x13, // garbage, discarded
+                0xa0, 0x06, 0x0d, 0x54, // OPC_LOCO_SPD
+                0xb2, 0x10, // cut short by the next opcode: resync
+                0xb2, 0x10, 0x30, 0x00, // OPC_INPUT_REP, bad checksum
+                0xe7, 0x0e, 0x06, 0x30, 0x51, 0x00, 0x00, 0x07, 0x00, 0x00, 0x00, 0x00, 0x00, 0x76);
+        assertEquals("published at the end of the second", 0, ln.stats.getPackets());
+        ln.stats.tick(s);
+
+        LoconetStats stats = ln.stats;
+        assertEquals("bytes", 26, stats.getBytes());
+        assertEquals("packets", 3, stats.getPackets());
+        assertEquals("discarded", 4, stats.getBytesDiscarded());
+        assertEquals("resyncs", 1, stats.getResyncs());
+        assertEquals("checksum errors", 1, stats.getChecksumErrors());
+        assertEquals("per opcode", 1, stats.getPackets(Loconet.OPC_INPUT_REP));
+        assertArrayEquals("opcodes", new String[] { "OPC_LOCO_SPD=1", "OPC_INPUT_REP=1", "OPC_RD_SL_DATA=1" }, stats.getPacketsPerOpcode());
+        long[] sizes = stats.getPacketSizes();
+        assertEquals("4 byte packets", 2, sizes[4]);
+        assertEquals("14 byte packets", 1, sizes[14]);
+        assertEquals("bytes per second", 26, stats.getBytesPerSecond());
+        assertEquals("utilisation", 26 / 1666.0, stats.getBusUtilisation(), 1e-9);
+        assertTrue("no summary yet", summaries.isEmpty());
+
+        ln.stats.tick(2 * s);
+        assertEquals("quiet second", 0, stats.getBytesPerSecond());
+        assertEquals("summary", Collections.singletonList("ln 2 pkt/s 0.8% bus (peak 1.6%), 4 discarded, 1 resyncs, 1 checksum errors"), summaries);
+    }
+}
@@ -1,9 +1,22 @@
 package net.fijma.serial;
 
 import net.fijma.mvc.serial.Serial;
+import net.fijma.serial.model.Automation;
+import net.fijma.serial.model.CommandTracker;
+import net.fijma.serial.model.MessageLog;
 import net.fijma.serial.model.Model;
+import net.fijma.serial.model.PacketBuilder;
+import net.fijma.serial.model.SlotFrame;
+import net.fijma.serial.model.SlotWriter;
+import net.fijma.serial.model.SpeedProfile;
+import net.fijma.serial.model.ThrottleState;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -35,4 +48,381 @@ public class MainTest {
 
         assertEquals("throttle status", "loco:23,speed:10,direction:forward,F0-1,F1-0,F2-0,F3-1,F4-0,F5-0,F6-0,F7-0,F8-0,F9-0,F10-0,F11-0,F12-0", t.toString());
     }
+
+    @Test
+    public
+    void testSlotWriterCoalesces() {
+
+        SlotWriter w = new SlotWriter(2, 100);
+        long now = System.nanoTime();
+
+        // first update after a quiet period is due straight away
+        w.update(0, "S0 23 1 1");
+        assertArrayEquals("first", new String[] { "S0 23 1 1" }, w.takeDue(now));
+
+        // next ones wait for the interval, only the latest state per slot is handed out, in slot order
+        w.update(0, "S0 23 2 1");
+        w.update(1, "S1 24 5 1");
+        w.update(0, "S0 23 3 1");
+        assertNull("not yet due", w.takeDue(now + 1000));
+        assertArrayEquals("coalesced", new String[] { "S0 23 3 1", "S1 24 5 1" }, w.takeDue(now + 100_000_000));
+        assertEquals("nothing pending", Long.MAX_VALUE, w.nanosUntilDue(now));
+    }
+
+    @Test
+    public
+    void testCommandWriter() throws IOException {
+
+        Serial s = mock(Serial.class);
+        Model m = new Model(s::write, 2, 16, 0);
+
+        Model.Throttle t = m.getThrottleFor(3);
+        t.setSpeed(10);
+        m.setPower(true);
+        verify(s, timeout(1000)).write("P\n");
+        verify(s, timeout(1000)).write("S0 3 10 1 0000000000000\n");
+
+        t.emergencyStop();
+        verify(s, timeout(1000)).write("N0 3\n");
+        assertTrue("emergency", t.isEmergency());
+        assertEquals("stopped", 0, t.getSpeed());
+    }
+
+    @Test
+    public
+    void testSlotReclaim() throws IOException {
+
+        Serial s = mock(Serial.class);
+        Model m = new Model(s::write, 2, 16, 0);
+
+        Model.Throttle t1 = m.getThrottleFor(1);
+        Model.Throttle t2 = m.getThrottleFor(2);
+        assertSame("lookup", t1, m.getThrottleFor(1));
+        t1.setSpeed(10); // busy, not to be reclaimed
+
+        // third loco takes the idle slot of loco 2, which gets parked
+        int slot2 = t2.getSlot();
+        Model.Throttle t3 = m.getThrottleFor(3);
+        assertFalse("third throttle", t3.hasError());
+        assertEquals("reclaimed slot", slot2, t3.getSlot());
+        assertEquals("parked", -1, t2.getSlot());
+        assertFalse("not released", t2.isReleased());
+
+        // no idle slots left, a parked loco can't move
+        t3.setSpeed(1);
+        Model.Throttle t4 = m.getThrottleFor(4);
+        assertEquals("parked straight away", -1, t4.getSlot());
+        t4.setSpeed(5);
+        assertEquals("no slot, no speed", 0, t4.getSpeed());
+        assertEquals("no slot, no target", 0, t4.getTargetSpeed());
+
+        // momentum doesn't bring it back
+        m.setProfile(4, SpeedProfile.momentum(1000, 1000));
+        t4.setTargetSpeed(50);
+        long now = System.nanoTime();
+        for (int i=0; i<5; ++i) m.tick(now += 100_000_000);
+        assertEquals("ramp stopped", 0, t4.getSpeed());
+        assertEquals("ramp target", 0, t4.getTargetSpeed());
+        assertEquals("still parked", -1, t4.getSlot());
+
+        // explicit release, the loco parked longest gets the slot
+        int slot1 = t1.getSlot();
+        m.releaseThrottle(t1);
+        assertEquals("freed slot", slot1, t2.getSlot());
+    }
+
+    @Test
+    public
+    void testVirtualSlots() throws IOException {
+
+        Serial s = mock(Serial.class);
+        Model m = new Model(s::write, 2, 16, 0);
+        m.setRotateInterval(100);
+
+        // five parked locos with their lights on, two slots
+        Model.Throttle[] ts = new Model.Throttle[5];
+        for (int i=0; i<5; ++i) {
+            ts[i] = m.getThrottleFor(10 + i);
+            ts[i].toggleFunction(0);
+        }
+        assertEquals("parked", 3, m.parkedCount());
+
+        // every loco gets its turn within a few rotations
+        long now = System.nanoTime();
+        boolean[] seen = new boolean[5];
+        for (int r=0; r<4; ++r) {
+            m.tick(now + r * 100_000_000L);
+            for (int i=0; i<5; ++i) if (ts[i].getSlot() >= 0) seen[i] = true;
+        }
+        for (int i=0; i<5; ++i) assertTrue("refreshed " + i, seen[i]);
+        assertTrue("bounded gap", m.maxRefreshGap() <= 400);
+        // three parked, two idle slots: nobody waits more than two rotations
+        long later = now + 3 * 100_000_000L;
+        for (int i=0; i<5; ++i) {
+            assertTrue("bounded gap " + i, ts[i].maxRefreshGap() <= 200);
+            assertTrue("current gap " + i, ts[i].refreshGap(later) <= 200);
+            assertEquals("published gap " + i, ts[i].maxRefreshGap(), ts[i].state().maxRefreshGap);
+            assertEquals("published parked " + i, ts[i].getSlot() < 0, ts[i].state().parkedSince != 0);
+        }
+
+        // a moving loco stays
+        Model.Throttle moving = ts[0];
+        moving.setSpeed(20);
+        int slot = moving.getSlot();
+        for (int r=4; r<10; ++r) m.tick(now + r * 100_000_000L);
+        assertEquals("resident", slot, moving.getSlot());
+    }
+
+    @Test
+    public
+    void testCommandTracker() {
+
+        CommandTracker t = new CommandTracker(1000);
+        long ms = 1_000_000;
+
+        t.sent(0);
+        t.sent(0);
+        t.sent(0);
+        t.reply(true, 2 * ms);
+        t.reply(false, 4 * ms);
+        assertEquals("in flight", 1, t.inFlight());
+
+        // third one never answered
+        t.sent(2000 * ms);
+        assertEquals("lost", 1, t.lost());
+        t.reply(true, 2010 * ms);
+
+        assertEquals("acknowledged", 2, t.acknowledged());
+        assertEquals("errors", 1, t.errors());
+        long p50 = t.percentile(0.5);
+        assertTrue("p50 around 4ms: " + p50, p50 >= 4000 && p50 < 5000);
+        assertTrue("p99 around 10ms", t.percentile(0.99) >= 10000);
+    }
+
+    @Test
+    public
+    void testCompactSlots() throws IOException {
+
+        assertEquals("frame", "U0104D2FE1000C6", new SlotFrame().encode(1, 1234, 126, true, 0x1000).toString());
+
+        Serial s = mock(Serial.class);
+        Model m = new Model(s::write, 2, 16, 0);
+        m.setCompactSlots(true);
+        Model.Throttle t = m.getThrottleFor(3);
+        t.toggleFunction(0);
+        verify(s, timeout(1000)).write("U0000038010006C\n");
+    }
+
+    @Test
+    public
+    void testFunctionMask() throws IOException {
+
+        Serial s = mock(Serial.class);
+        Model m = new Model(s::write, 2, 16, 0);
+        Model.Throttle t = m.getThrottleFor(5);
+        verify(s, timeout(1000)).write("S0 5 0 1 0000000000000\n");
+
+        // wire order is FL-F4-F3-F2-F1-F8-F7-F6-F5-F12-F11-F10-F9
+        t.toggleFunction(1);
+        t.toggleFunction(8);
+        t.toggleFunction(9);
+        verify(s, timeout(1000)).write("S0 5 0 1 0000110000001\n");
+
+        // the sketch knows nothing about F13 and up, they go out as a dcc packet, no slot update
+        t.toggleFunction(20);
+        verify(s, timeout(1000)).write("L ED 0B 7F 34 06 05 5E 00 00 00\n");
+        assertTrue("F20", t.getFunction(20));
+        assertEquals("mask", (1 << 1) | (1 << 8) | (1 << 9) | (1 << 20), t.getFunctions());
+        assertEquals("status", "loco:5,speed:0,direction:forward,F0-0,F1-1,F2-0,F3-0,F4-0,F5-0,F6-0,F7-0,F8-1,F9-1,F10-0,F11-0,F12-0,F20-1", t.toString());
+        verify(s, after(200).times(1)).write("S0 5 0 1 0000110000001\n");
+    }
+
+    @Test
+    public
+    void testAutomation() throws IOException {
+
+        Model m = new Model(s -> {}, 2, 16, 0);
+        Automation a = new Automation(m);
+        a.load(new StringReader("# test layout\nstop 33 5\nroute 33 12c 13t  # into the yard\nblock 40 7\n"));
+        assertEquals("rules", 3, a.size());
+
+        Model.Throttle t = m.getThrottleFor(5);
+        t.setSpeed(20);
+        m.layout.turnout(13, false); // already thrown
+
+        m.layout.sensor(33, true);
+        assertEquals("stopped", 0, t.getSpeed());
+        assertTrue("closed", m.layout.isClosed(12));
+        assertFalse("thrown", m.layout.isClosed(13));
+
+        // signal follows the block
+        m.layout.sensor(40, true);
+        assertFalse("red", m.layout.isClosed(7));
+        m.layout.sensor(40, false);
+        assertTrue("green", m.layout.isClosed(7));
+
+        // accelerating but not moving yet, stops all the same
+        m.layout.sensor(33, false);
+        m.setProfile(5, SpeedProfile.momentum(1000, 1000));
+        t.setTargetSpeed(50);
+        assertEquals("not moving yet", 0, t.getSpeed());
+        m.layout.sensor(33, true);
+        assertEquals("no target", 0, t.getTargetSpeed());
+        m.tick(System.nanoTime());
+        assertEquals("still stopped", 0, t.getSpeed());
+
+        try {
+            a.load(new StringReader("stop 33 5\nfly 1 2\n"));
+            fail("unknown rule");
+        } catch (IllegalArgumentException e) {
+            assertEquals("error", "line 2: Unknown rule: fly", e.getMessage());
+        }
+    }
+
+    @Test
+    public
+    void testMsgBatch() {
+
+        Model m = new Model(s -> {}, 2, 64, 0);
+        AtomicInteger events = new AtomicInteger();
+        AtomicReference<MessageLog> seen = new AtomicReference<>();
+        m.msg.attach(log -> { events.incrementAndGet(); seen.set(log); });
+
+        m.beginBatch();
+        m.beginBatch();
+        for (int i=0; i<50; ++i) m.onMsg("sensor " + i);
+        m.endBatch();
+        assertEquals("nested", 0, events.get());
+        m.endBatch();
+        assertEquals("one event per batch", 1, events.get());
+        assertEquals("all messages", 50, seen.get().size());
+        assertEquals("newest", "sensor 49", seen.get().get(0));
+
+        m.onMsg("single");
+        assertEquals("no batch", 2, events.get());
+    }
+
+    @Test
+    public
+    void testThrottleState() {
+
+        Model m = new Model(s -> {}, 2, 16, 0);
+        Model.Throttle t = m.getThrottleFor(3);
+        ThrottleState before = t.state();
+        assertEquals("initial", 0, before.speed);
+
+        t.setSpeed(40);
+        t.toggleFunction(2);
+        ThrottleState after = m.state(t.address);
+        assertEquals("unchanged", 0, before.speed);
+        assertEquals("speed", 40, after.speed);
+        assertTrue("function", after.getFunction(2));
+        assertTrue("version", after.version > before.version);
+        assertSame("published", after, m.states().get(0));
+
+        m.releaseThrottle(t);
+        assertNull("released", m.state(t.address));
+        assertNull("released throttle", t.state());
+    }
+
+    @Test
+    public
+    void testPacketBuilder() {
+
+        PacketBuilder p = new PacketBuilder();
+        assertEquals("switch", "L B0 2C 32", p.switchRequest(300, true, true).command());
+        assertEquals("checksum", 0xFF ^ 0xB0 ^ 0x2C ^ 0x32, p.checksum());
+        assertEquals("sensor", "L B2 10 70", p.inputReport(33, true).command());
+        assertEquals("loco", "L BF 00 51", p.locoAddress(81).command());
+        assertEquals("slot", "L E7 0E 06 30 51 00 00 07 00 00 00 00 00", p.readSlot(6, 0x30, 81, 0, 0, 7, 0, 0, 0, 0).command());
+        assertEquals("immediate", "L ED 0B 7F 21 02 03 3F 00 00 00", p.immediate(1, 0x03, 0xBF).command());
+        assertEquals("immediate length byte", p.length() + 1, p.get(1));
+        assertEquals("immediate 3", "L ED 0B 7F 30 06 03 5E 01 00 00", p.immediate(0, 0x03, 0xDE, 0x81).command());
+        try {
+            p.locoSpeed(1, 200);
+            fail("data byte");
+        } catch (IllegalArgumentException e) {
+            // 7 bits only
+        }
+    }
+
+    @Test
+    public
+    void testTransmitPacing() throws InterruptedException {
+
+        BlockingQueue<String> written = new LinkedBlockingQueue<>();
+        Model m = new Model(s -> { for (String c : s.split("\n")) written.add(c); }, 2, 16, 0);
+
+        m.set_OPC_SW_REQ(1, true, true);
+        m.set_OPC_SW_REQ(2, true, true);
+        m.transmit(m.packet().requestSlot(3), true);
+        assertEquals("first", "L B0 01 30", written.poll(1, TimeUnit.SECONDS));
+        assertNull("wait for the sketch", written.poll(200, TimeUnit.MILLISECONDS));
+
+        // urgent one first
+        m.onReply("OK #bytes=3");
+        assertEquals("urgent", "L BB 03 00", written.poll(1, TimeUnit.SECONDS));
+        m.onReply("OK #bytes=3");
+        assertEquals("second", "L B0 02 30", written.poll(1, TimeUnit.SECONDS));
+        assertTrue("switch state", m.layout.isClosed(2));
+    }
+
+    @Test
+    public
+    void testMomentum() throws InterruptedException {
+
+        BlockingQueue<String> written = new LinkedBlockingQueue<>();
+        Model m = new Model(s -> { for (String c : s.split("\n")) written.add(c); }, 2, 16, 0);
+        m.setProfile(3, SpeedProfile.momentum(1000, 500));
+        long ms = 1_000_000;
+        long now = 0;
+        m.tick(now);
+
+        Model.Throttle t = m.getThrottleFor(3);
+        t.setTargetSpeed(126);
+        assertEquals("not yet", 0, t.getSpeed());
+        for (int i=0; i<5; ++i) m.tick(now += 100 * ms);
+        assertEquals("half way", 63, t.getSpeed());
+        for (int i=0; i<5; ++i) m.tick(now += 100 * ms);
+        assertEquals("full speed", 126, t.getSpeed());
+
+        // braking is twice as fast
+        t.setTargetSpeed(0);
+        for (int i=0; i<2; ++i) m.tick(now += 100 * ms);
+        assertEquals("braking", 76, t.getSpeed());
+        for (int i=0; i<3; ++i) m.tick(now += 100 * ms);
+        assertEquals("stopped", 0, t.getSpeed());
+
+        // speed table, no momentum
+        m.setProfile(4, SpeedProfile.NONE.withCurve(10, 100, 1));
+        Model.Throttle t4 = m.getThrottleFor(4);
+        t4.setTargetSpeed(1);
+        assertEquals("throttle speed", 1, t4.getSpeed());
+        String s;
+        do {
+            s = written.poll(1, TimeUnit.SECONDS);
+            assertNotNull("slot update", s);
+        } while (!s.startsWith("S" + t4.getSlot() + " 4 10 "));
+    }
+
+    @Test
+    public
+    void testReleaseStops() throws InterruptedException {
+
+        BlockingQueue<String> written = new LinkedBlockingQueue<>();
+        Model m = new Model(s -> { for (String c : s.split("\n")) written.add(c); }, 2, 16, 0);
+        Model.Throttle t = m.getThrottleFor(3);
+        t.setSpeed(20);
+        String s;
+        do {
+            s = written.poll(1, TimeUnit.SECONDS);
+            assertNotNull("moving", s);
+        } while (!s.equals("S0 3 20 1 0000000000000"));
+
+        m.releaseThrottle(t);
+        assertEquals("stopped", "S0 3 0 1 0000000000000", written.poll(1, TimeUnit.SECONDS));
+        assertNull("nothing after", written.poll(100, TimeUnit.MILLISECONDS));
+        assertTrue("released", t.isReleased());
+        assertNull("gone", m.findThrottle(3));
+    }
 }
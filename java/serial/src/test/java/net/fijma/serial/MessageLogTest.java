@@ -0,0 +1,65 @@
+package net.fijma.serial;
+
+import net.fijma.serial.model.MessageLog;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageLogTest {
+
+    @Test
+    public void testRing() {
+        MessageLog log = new MessageLog(3);
+        assertEquals("rounded capacity", 4, log.capacity());
+        assertEquals("empty", 0, log.size());
+
+        for (int i=0; i<6; ++i) log.add("m" + i);
+        assertEquals("size", 4, log.size());
+        assertEquals("count", 6, log.count());
+        assertEquals("newest", "m5", log.get(0));
+        assertEquals("oldest", "m2", log.get(3));
+        assertEquals("snapshot", Arrays.asList("m5", "m4"), log.snapshot(2));
+    }
+
+    @Test
+    public void testLazy() {
+        MessageLog log = new MessageLog(4);
+        int[] formatted = new int[1];
+        Object msg = new Object() {
+            @Override
+            public String toString() {
+                formatted[0]++;
+                return "lazy";
+            }
+        };
+        log.add(msg);
+        assertEquals("not yet", 0, formatted[0]);
+        assertEquals("text", "lazy", log.get(0));
+        assertEquals("again", "lazy", log.get(0));
+        assertEquals("formatted once", 1, formatted[0]);
+    }
+
+    @Test
+    public void testPackets() {
+        MessageLog log = new MessageLog(2);
+        String on = new LoconetPacket(new int[] { 0x83, 0x7C }, 2).toString();
+        String off = new LoconetPacket(new int[] { 0x82, 0x7D }, 2).toString();
+
+        // one packet over a reused buffer, like the decoder's
+        int[] bs = { 0x83, 0x7C };
+        LoconetPacket p = new LoconetPacket(bs, 2);
+        log.add(p);
+        bs[0] = 0x82; bs[1] = 0x7D;
+        log.add(p);
+        assertEquals("newest", off, log.get(0));
+        assertEquals("copied", on, log.get(1));
+
+        // wrapped around, overwritten in place
+        bs[0] = 0x83; bs[1] = 0x7C;
+        log.add(p);
+        assertEquals("overwritten", on, log.get(0));
+        assertEquals("formatted again", on, log.get(0));
+        assertEquals("oldest", off, log.get(1));
+    }
+}
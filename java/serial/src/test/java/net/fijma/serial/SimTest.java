@@ -0,0 +1,119 @@
+package net.fijma.serial;
+
+import net.fijma.serial.model.LayoutState;
+import net.fijma.serial.model.MessageLog;
+import net.fijma.serial.model.Model;
+import net.fijma.serial.sim.Capture;
+import net.fijma.serial.sim.Replay;
+import net.fijma.serial.sim.SensorStorm;
+import net.fijma.serial.sim.SimulatedStation;
+import net.fijma.serial.tui.MainView;
+import net.fijma.serial.tui.SerialController;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SimTest {
+
+    @Test
+    public void testCaptureReplay() throws Exception {
+        StringWriter w = new StringWriter();
+        Capture capture = new Capture(w);
+        capture.in("HELO");
+        capture.wrap(s -> {}).write("S0 3 0 1 0000000000000\nP\n");
+        capture.in("OK power is on");
+        capture.close();
+
+        String[] records = w.toString().split("\n");
+        assertEquals("records", 4, records.length);
+        assertTrue("out", records[2].endsWith(" > P"));
+
+        // garbage is skipped, not fatal
+        String log = w + "12x < OK\nnonsense\n";
+
+        Model m = new Model(s -> {}, 2, 16, 0);
+        SerialController controller = controller(m);
+        try {
+            Replay replay = new Replay(controller::post, false);
+            long n = replay.run(new StringReader(log));
+            assertEquals("replayed", 2, n);
+            assertEquals("skipped", 2, replay.skipped());
+            assertTrue("inbound only", await(controller, () -> log(m).contains("controller initialized") && log(m).contains("OK power is on")));
+        } finally {
+            controller.close();
+        }
+    }
+
+    @Test
+    public void testSensorStorm() throws Exception {
+        Model m = new Model(s -> {}, 2, 16, 0);
+        SerialController controller = controller(m);
+        try {
+            // as fast as we can
+            new SensorStorm(4096, 42).run(controller::post, 100_000, 0);
+            assertTrue("all seen", await(controller, () -> countKnown(m.layout) == LayoutState.SENSORS));
+        } finally {
+            controller.close();
+        }
+    }
+
+    private static int countKnown(LayoutState layout) {
+        int n = 0;
+        for (int i=0; i<LayoutState.SENSORS; ++i) if (layout.isSensorKnown(i)) ++n;
+        return n;
+    }
+
+    @Test
+    public void testSimulatedStation() throws Exception {
+        AtomicReference<SerialController> ctl = new AtomicReference<>();
+        Model m = new Model(new SimulatedStation(line -> ctl.get().post(line)), 2, 16, 0);
+        SerialController controller = controller(m);
+        ctl.set(controller);
+        try {
+            controller.execute(() -> m.setPower(true));
+            assertTrue("power", await(controller, () -> log(m).contains("OK power is on")));
+
+            // switch request goes out as a loconet packet, comes back from the bus
+            controller.execute(() -> m.set_OPC_SW_REQ(12, false, true));
+            assertTrue("echo", await(controller, () -> log(m).contains("OPC_REQ_SWITCH(ADR=12,DIR=false,ON=true)")));
+            assertTrue("ack", log(m).contains("OK #bytes=3"));
+        } finally {
+            controller.close();
+        }
+    }
+
+    private static SerialController controller(Model m) {
+        PrintStream nowhere = new PrintStream(new ByteArrayOutputStream());
+        SerialController controller = new SerialController(new Main(), m, new MainView(m, nowhere));
+        controller.start();
+        return controller;
+    }
+
+    private static String log(Model m) {
+        MessageLog log = m.messages();
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<log.size(); ++i) sb.append(log.get(i)).append('\n');
+        return sb.toString();
+    }
+
+    // wait until the condition holds, checked on the model thread
+    private static boolean await(SerialController controller, Callable<Boolean> condition) throws Exception {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < end) {
+            FutureTask<Boolean> task = new FutureTask<>(condition);
+            controller.execute(task);
+            if (task.get()) return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
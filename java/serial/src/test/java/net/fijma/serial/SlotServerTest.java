@@ -0,0 +1,78 @@
+package net.fijma.serial;
+
+import net.fijma.serial.model.Model;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SlotServerTest {
+
+    // "LN ..." line for bs, with checksum
+    private static String ln(int... bs) {
+        StringBuilder sb = new StringBuilder("LN");
+        int chk = 0xFF;
+        for (int b : bs) {
+            sb.append(' ').append(Integer.toHexString(b));
+            chk ^= b;
+        }
+        return sb.append(' ').append(Integer.toHexString(chk)).toString();
+    }
+
+    // next command written to the controller that is not a slot update or emergency stop, confirmed like the
+    // sketch does, so the next packet can go
+    private static String next(Model m, BlockingQueue<String> written) throws InterruptedException {
+        String s;
+        do {
+            s = written.poll(1, TimeUnit.SECONDS);
+            assertNotNull("reply", s);
+        } while (s.startsWith("S") || s.startsWith("N"));
+        m.onReply("OK #bytes=" + s.substring(1).trim().split(" ").length);
+        return s;
+    }
+
+    @Test
+    public void testSlotServer() throws Exception {
+        BlockingQueue<String> written = new LinkedBlockingQueue<>();
+        Model m = new Model(s -> { for (String c : s.split("\n")) written.add(c); }, 4, 16, 0);
+        Loconet ln = new Loconet();
+        SlotServer server = new SlotServer(m);
+        server.attach(ln);
+
+        // throttle asks for loco 81, gets slot 1
+        ln.pushHex(ln(Loconet.OPC_LOCO_ADR, 0x00, 0x51), 2);
+        assertEquals("slot data", "L E7 0E 01 23 51 00 00 06 00 00 00 00 00", next(m, written));
+
+        // null move, in use
+        ln.pushHex(ln(Loconet.OPC_MOVE_SLOTS, 1, 1), 2);
+        assertEquals("in use", "L E7 0E 01 33 51 00 00 06 00 00 00 00 00", next(m, written));
+        assertEquals("in use", SlotServer.IN_USE, server.stat(1) & 0x30);
+
+        // drive it: speed, backwards with F0 and F2, F5
+        ln.pushHex(ln(Loconet.OPC_LOCO_SPD, 1, 11), 2);
+        ln.pushHex(ln(Loconet.OPC_LOCO_DIF, 1, 0x20 | 0x10 | 0x02), 2);
+        ln.pushHex(ln(Loconet.OPC_LOCO_SND, 1, 0x01), 2);
+        Model.Throttle t = m.findThrottle(81);
+        assertEquals("speed", 10, t.getSpeed());
+        assertFalse("backwards", t.getDirection());
+        assertEquals("functions", (1 << 0) | (1 << 2) | (1 << 5), t.getFunctions());
+
+        // keyboard changes show up in the slot
+        t.setSpeed(20);
+        assertEquals("table", 21, server.speed(1));
+        ln.pushHex(ln(Loconet.OPC_RQ_SL_DATA, 1, 0), 2);
+        assertEquals("request", "L E7 0E 01 33 51 15 32 06 00 00 01 00 00", next(m, written));
+
+        // slot write is acknowledged and applied
+        ln.pushHex(ln(Loconet.OPC_WR_SL_DATA, 0x0E, 1, 0x33, 0x51, 1, 0, 0x07, 0, 0, 0, 0, 0), 2);
+        assertEquals("ack", "L B4 6F 7F", next(m, written));
+        assertTrue("emergency stop", t.isEmergency());
+
+        // no dispatching
+        ln.pushHex(ln(Loconet.OPC_MOVE_SLOTS, 1, 0), 2);
+        assertEquals("nack", "L B4 3A 00", next(m, written));
+    }
+}
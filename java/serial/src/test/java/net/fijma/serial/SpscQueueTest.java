@@ -0,0 +1,34 @@
+package net.fijma.serial;
+
+import net.fijma.serial.model.SpscQueue;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscQueueTest {
+
+    @Test
+    public void testQueue() throws InterruptedException {
+        SpscQueue<Integer> q = new SpscQueue<>(3);
+        assertEquals("rounded capacity", 4, q.capacity());
+        for (int i=0; i<4; ++i) assertTrue(q.offer(i));
+        assertFalse("full", q.offer(4));
+        assertEquals("fifo", Integer.valueOf(0), q.poll());
+        assertTrue("room again", q.offer(4));
+
+        // producer and consumer on their own threads, everything arrives in order
+        SpscQueue<Integer> p = new SpscQueue<>(16);
+        int n = 100_000;
+        Thread producer = new Thread(() -> {
+            for (int i=0; i<n; ++i) while (!p.offer(i)) Thread.yield();
+        });
+        producer.start();
+        for (int i=0; i<n; ++i) {
+            Integer x;
+            while ((x = p.poll()) == null) Thread.yield();
+            assertEquals("order", i, x.intValue());
+        }
+        producer.join();
+        assertTrue("empty", p.isEmpty());
+    }
+}
@@ -0,0 +1,75 @@
+package net.fijma.serial;
+
+import net.fijma.serial.model.Model;
+import net.fijma.serial.server.ThrottleServer;
+import net.fijma.serial.sim.SimulatedStation;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ThrottleServerTest {
+
+    private static class Client implements AutoCloseable {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        Client(int port) throws Exception {
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(2000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        String ask(String cmd) throws Exception {
+            out.println(cmd);
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws Exception {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        ExecutorService modelThread = Executors.newSingleThreadExecutor();
+        Model m = new Model(new SimulatedStation(line -> {}), 2, 16, 0);
+        try (ThrottleServer server = new ThrottleServer(m, modelThread, 0);
+             Client a = new Client(server.port());
+             Client b = new Client(server.port())) {
+
+            assertEquals("acquire", "T 3 0 1 0 0", a.ask("A 3"));
+            assertEquals("acquire shared", "T 3 0 1 0 0", b.ask("A 3"));
+
+            // changes go to everybody driving the loco
+            assertEquals("speed", "T 3 10 1 0 0", a.ask("S 3 10"));
+            assertEquals("pushed", "T 3 10 1 0 0", b.in.readLine());
+            assertEquals("function", "T 3 10 1 0 4", b.ask("F 3 2"));
+            assertEquals("pushed", "T 3 10 1 0 4", a.in.readLine());
+
+            assertEquals("not acquired", "ERR not acquired: S 4 1", a.ask("S 4 1"));
+            assertEquals("invalid", "ERR invalid command: S 3 x", a.ask("S 3 x"));
+
+            assertEquals("power", "P 1", a.ask("P 1"));
+            assertEquals("power pushed", "P 1", b.in.readLine());
+
+            // the last one to leave releases the loco, a fresh throttle after that
+            b.out.println("L 3");
+            assertEquals("still there", "T 3 20 1 0 4", a.ask("S 3 20"));
+            a.out.println("L 3");
+            assertEquals("released", "T 3 0 1 0 0", a.ask("A 3"));
+        } finally {
+            modelThread.shutdown();
+        }
+    }
+}